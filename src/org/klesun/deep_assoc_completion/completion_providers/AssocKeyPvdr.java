@@ -2,9 +2,16 @@ package org.klesun.deep_assoc_completion.completion_providers;
 
 import com.intellij.codeInsight.completion.*;
 import com.intellij.codeInsight.lookup.*;
+import com.intellij.codeInsight.lookup.impl.LookupImpl;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.util.ProcessingContext;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.jetbrains.php.lang.psi.elements.*;
 import com.jetbrains.php.lang.psi.resolve.types.PhpType;
 import org.jetbrains.annotations.NotNull;
@@ -33,6 +40,7 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
 {
     final private static int BRIEF_VALUE_MAX_LEN = 50;
     final private static int COMMENTED_MAX_LEN = 90;
+    final private static int FIRST_ROUND_DEPTH = 10;
 
     private static ImageIcon icon = null;
 
@@ -60,6 +68,22 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
         return getMaxDepth(parameters.isAutoPopup(), parameters.getEditor().getProject());
     }
 
+    /**
+     * depths of iterative deepening rounds: shallow one shows first keys
+     * fast, deeper ones reuse complete results cached by previous rounds
+     */
+    private static L<Integer> getDepthSchedule(int maxDepth, boolean deepen)
+    {
+        L<Integer> depths = list();
+        if (deepen) {
+            for (int d = Math.max(1, Math.min(FIRST_ROUND_DEPTH, maxDepth)); d < maxDepth; d *= 2) {
+                depths.add(d);
+            }
+        }
+        depths.add(maxDepth);
+        return depths;
+    }
+
     private static LookupElementBuilder makePaddedLookup(String keyName, String ideaType, String briefVal, int maxValLen)
     {
         ideaType = !ideaType.equals("") ? ideaType : "?";
@@ -153,13 +177,61 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
         }
     }
 
-    private T2<Dict<MutableLookup>, Map<String, Set<String>>> addNameOnly(Mt arrMt, CompletionResultSet result, boolean includeQuotes, C<String> onFirst)
+    /** completion is over when its popup is closed, or if it was not shown at all */
+    private static boolean isFinished(CompletionProcess process)
     {
-        Set<String> keyNames = new LinkedHashSet<>();
-        Map<String, Set<String>> keyToComments = new HashMap<>();
-        Mutable<Boolean> isFirst = new Mutable<>(true);
-        Dict<MutableLookup> nameToMutLookup = new Dict<>(new LinkedHashMap<>());
-        arrMt.types.fap(t -> t.keys).fch((k, i) -> {
+        return process instanceof ProgressIndicator
+            && ((ProgressIndicator)process).isCanceled();
+    }
+
+    /**
+     * resolves full type of keys one by one in a non-blocking read action,
+     * so that popup is shown right after key names are known and the
+     * details are filled in as they get resolved
+     *
+     * types of the keys were resolved against PSI as it was on completion, so
+     * the chain stops on any PSI change (typing) as well as when popup is closed
+     */
+    private static void resolveDetailsInBackground(
+        L<T2<String, MutableLookup>> keyLookups, int i,
+        Map<String, Mt> keyToArrMt, Map<String, Set<String>> keyToComments,
+        SearchCtx search, Editor editor, CompletionProcess process,
+        PsiModificationTracker psiTracker, long psiStamp
+    ) {
+        if (i >= keyLookups.size()) {
+            search.releaseCaches();
+            return;
+        }
+        String keyName = keyLookups.get(i).a;
+        MutableLookup mutLook = keyLookups.get(i).b;
+        Set<String> comments = opt(keyToComments.get(keyName)).def(new HashSet<>());
+        Mt arrMt = opt(keyToArrMt.get(keyName)).def(new Mt(It.non()));
+        ReadAction
+            .nonBlocking(() -> search.makeBudget(25)
+                .withBudget(() -> makeFullLookup(arrMt, keyName, comments)))
+            .expireWhen(() -> editor.isDisposed() || search.project.any(p -> p.isDisposed())
+                || isFinished(process) || psiTracker.getModificationCount() != psiStamp)
+            .finishOnUiThread(ModalityState.defaultModalityState(), lookup -> {
+                mutLook.lookupData = lookup;
+                LookupEx active = LookupManager.getActiveLookup(editor);
+                if (active instanceof LookupImpl) {
+                    ((LookupImpl)active).refreshUi(false, false);
+                }
+                resolveDetailsInBackground(keyLookups, i + 1, keyToArrMt, keyToComments, search, editor, process, psiTracker, psiStamp);
+            })
+            .submit(AppExecutorUtil.getAppExecutorService())
+            // expired: nobody will see the rest of details
+            .onError(exc -> search.releaseCaches());
+    }
+
+    /** adds keys that are not in nameToMutLookup yet - it may be filled by previous deepening round */
+    private void addNameOnly(
+        Mt arrMt, CompletionResultSet result, boolean includeQuotes, C<String> onFirst,
+        Dict<MutableLookup> nameToMutLookup, Map<String, Set<String>> keyToComments,
+        Map<String, Mt> keyToArrMt
+    ) {
+        Set<String> keyNames = nameToMutLookup.keySet();
+        arrMt.types.fap(t -> t.getKeys()).fch((k, i) -> {
             k.keyType.getTypes().itr().fch((kt,j) -> {
                 L<String> keyNamesToAdd = list();
                 if (kt.stringValue == null) {
@@ -169,18 +241,17 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
                 } else {
                     keyNamesToAdd.add(kt.stringValue);
                 }
+                keyNamesToAdd.fch(name -> keyToArrMt.put(name, arrMt));
                 L<String> newKeyNamesToAdd = keyNamesToAdd.flt(kn -> !keyNames.contains(kn)).arr();
                 for (String keyName: newKeyNamesToAdd) {
-                    if (isFirst.get()) {
-                        isFirst.set(false);
+                    if (keyNames.isEmpty()) {
                         onFirst.accept(keyName);
                     }
-                    keyNames.add(keyName);
                     LookupElementBuilder justName = makePaddedLookup(keyName, "resolving...", "", BRIEF_VALUE_MAX_LEN);
                     MutableLookup mutLookup = new MutableLookup(justName, includeQuotes);
+                    nameToMutLookup.put(keyName, mutLookup);
                     int basePriority = Tls.isNum(keyName) ? 2000 : 2500;
                     result.addElement(PrioritizedLookupElement.withPriority(mutLookup, basePriority - keyNames.size()));
-                    nameToMutLookup.put(keyName, mutLookup);
 
                     String briefTypeRaw = Mt.getKeyBriefTypeSt(k.getBriefTypes()).filterUnknown().filterMixed().toStringResolved();
                     mutLookup.lookupData = makePaddedLookup(keyName, briefTypeRaw, "", BRIEF_VALUE_MAX_LEN);
@@ -199,14 +270,21 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
                 }
             });
         });
-        return T2(nameToMutLookup, keyToComments);
     }
 
     @Override
     protected void addCompletions(@NotNull CompletionParameters parameters, ProcessingContext processingContext, @NotNull CompletionResultSet result)
     {
         int depth = getMaxDepth(parameters);
-        SearchCtx search = new SearchCtx(parameters).setDepth(depth);
+        SearchCtx search = new SearchCtx(parameters).setDepth(depth)
+            .enableProjectCache()
+            .enableFuncSummaries()
+            .enableShapeMerging()
+            .enableWidening();
+        if (!parameters.isAutoPopup()) {
+            // user is ready to wait on Ctrl+Space, so all the types will be iterated anyway
+            search.enableParallel();
+        }
         FuncCtx funcCtx = new FuncCtx(search);
         search.isMain = true;
         Set<String> suggested = new HashSet<>();
@@ -219,26 +297,64 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
         long startTime = System.nanoTime();
         Mutable<Long> firstTime = new Mutable<>(-1L);
 
-        ExprCtx exprCtx = new ExprCtx(funcCtx, caretPsi, 0);
-        It<DeepType> arrTit;
-        try {
-            arrTit = resolveAtPsi(caretPsi, exprCtx);
-        } catch (Throwable exc) {
-            printExprTree(exprCtx, search, 0);
-            throw exc;
-        }
-        System.out.println("gonna start iterating with " + search.getExpressionsResolved() + " expression already resolved");
-        arrTit.has();
-        System.out.println("checked if iterator has anything, took " + search.getExpressionsResolved() + " expressions");
+        DeepSettings settings = DeepSettings.inst(caretPsi.getProject());
+        double budgetSec = settings.deepeningTimeLimitMs / 1000.0;
+        L<Integer> depths = getDepthSchedule(depth, budgetSec > 0);
+        Dict<MutableLookup> nameToMutLookup = new Dict<>(new LinkedHashMap<>());
+        Map<String, Set<String>> keyToComments = new HashMap<>();
+        // details of a key are resolved in the last finished round that had it, or
+        // in the round that found it, if it was found by a round cut by the deadline
+        Map<String, Mt> keyToArrMt = new HashMap<>();
+        for (int i = 0; i < depths.size(); ++i) {
+            double elapsedSec = (System.nanoTime() - startTime) / 1000000000.0;
+            if (i > 0 && elapsedSec > budgetSec) {
+                break;
+            }
+            int roundDepth = depths.get(i);
+            search.setDepth(roundDepth);
+            // usage-based resolution gets deeper along with the main one
+            search.overrideUsageDepth = som(settings.usageBasedCompletionDepthLimit * roundDepth / Math.max(1, depth));
+            if (i > 0) {
+                search.dropIncomplete();
+            }
+            S<Boolean> round = () -> search.withBudget(() -> {
+                ExprCtx exprCtx = new ExprCtx(funcCtx, caretPsi, 0);
+                It<DeepType> arrTit;
+                try {
+                    arrTit = resolveAtPsi(caretPsi, exprCtx);
+                } catch (Throwable exc) {
+                    printExprTree(exprCtx, search, 0);
+                    throw exc;
+                }
+                System.out.println("gonna start iterating at depth " + roundDepth + " with " + search.getExpressionsResolved() + " expression already resolved");
+                arrTit.has();
+                System.out.println("checked if iterator has anything, took " + search.getExpressionsResolved() + " expressions");
 
-        Mt arrMt = new Mt(arrTit);
-        // preliminary keys without type - they may be at least 3 times faster in some cases
-        T2<Dict<MutableLookup>, Map<String, Set<String>>> tuple = addNameOnly(arrMt, result, includeQuotes, (keyName) -> {
-            System.out.println("resolved " + search.getExpressionsResolved() + " expressions for first key - " + keyName);
-            firstTime.set(System.nanoTime() - startTime);
-        });
-        Dict<MutableLookup> nameToMutLookup = tuple.a;
-        Map<String, Set<String>> keyToComments = tuple.b;
+                Mt arrMt = new Mt(search.unqShapes(arrTit));
+                Map<String, Mt> roundKeyToArrMt = new HashMap<>();
+                // preliminary keys without type - they may be at least 3 times faster in some cases
+                addNameOnly(arrMt, result, includeQuotes, (keyName) -> {
+                    System.out.println("resolved " + search.getExpressionsResolved() + " expressions for first key - " + keyName);
+                    firstTime.set(System.nanoTime() - startTime);
+                }, nameToMutLookup, keyToComments, roundKeyToArrMt);
+                if (Interrupt.isPastDeadline()) {
+                    // cut in the middle, results cached in this round should not be trusted
+                    exprCtx.markIncomplete();
+                    roundKeyToArrMt.forEach(keyToArrMt::putIfAbsent);
+                    return false;
+                } else {
+                    keyToArrMt.putAll(roundKeyToArrMt);
+                    return true;
+                }
+            });
+            // first round is the baseline, deeper ones replace it if they manage to finish in time
+            boolean finished = i == 0 ? round.get() : Interrupt.withDeadline(budgetSec - elapsedSec, round);
+            if (!finished) {
+                break;
+            }
+        }
+        search.setDepth(depth);
+        search.overrideUsageDepth = non();
 
         long elapsed = System.nanoTime() - startTime;
         String prefix = "";
@@ -250,8 +366,13 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
             postfix += "                                                      ";
         }
         // length of this message defines the width of popup dialog apparently
+        long peakMb = search.getMemoryUsed() / 1024 / 1024;
+        long hitPercent = Math.round(search.getCacheHitRate() * 100);
+        String callStrings = search.getCallStringLimit() > 0 ? "k=" + search.getCallStringLimit() : "k=all";
+        String widened = search.getUnionsWidened() > 0 ? ", " + search.getUnionsWidened() + " widened" : "";
         result.addLookupAdvertisement(prefix + "Resolved " + search.getExpressionsResolved() +
-            " expressions in " + (elapsed / 1000000000.0) + " sec. First in " + (firstTime.get() / 1000000000.0) + postfix);
+            " expressions (~" + peakMb + " MiB peak, " + hitPercent + "% cached, " + callStrings + widened + ") in " +
+            (elapsed / 1000000000.0) + " sec. First in " + (firstTime.get() / 1000000000.0) + postfix);
 
         //printExprTree(exprCtx, 0);
 
@@ -278,18 +399,12 @@ public class AssocKeyPvdr extends CompletionProvider<CompletionParameters>
         // following code calculates deeper type info for
         // completion options and updates them in the dialog
 
-        Mutable<Boolean> hadComments = new Mutable<>(false);
-        nameToMutLookup
-            .fch((mutLook, keyName) -> {
-                search.overrideMaxExpr = som(search.getExpressionsResolved() + 25);
-                Set<String> comments = opt(keyToComments.get(keyName)).def(new HashSet<>());
-                LookupElementBuilder lookup = makeFullLookup(arrMt, keyName, comments);
-                hadComments.set(hadComments.get() || comments.size() > 0);
-                search.overrideMaxExpr = non();
-                mutLook.lookupData = lookup;
-            });
+        boolean hadComments = It(keyToComments.values()).any(comments -> comments.size() > 0);
+        PsiModificationTracker psiTracker = PsiModificationTracker.SERVICE.getInstance(caretPsi.getProject());
+        resolveDetailsInBackground(nameToMutLookup.prs(), 0, keyToArrMt, keyToComments, search, parameters.getEditor(),
+            parameters.getProcess(), psiTracker, psiTracker.getModificationCount());
 
-        if (hadComments.get()) {
+        if (hadComments) {
             // note, this character is not a simple space, it's U+2003 EM SPACE (mutton)
             result.addLookupAdvertisement(Tls.repeat(" ", 80 ));
         }
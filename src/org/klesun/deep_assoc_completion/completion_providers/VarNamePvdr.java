@@ -57,7 +57,7 @@ public class VarNamePvdr extends CompletionProvider<CompletionParameters>
 
     private static It<LookupElement> makeOptions(It<DeepType> tit)
     {
-        return tit.fap(t -> t.keys)
+        return tit.fap(t -> t.getKeys())
             .fap(k -> k.keyType.getNames()
                 .map(strVal -> makeLookupBase(strVal, k.getValueTypes().map(t -> t.briefType).unq().str("|")))
                 .map((lookup, i) -> PrioritizedLookupElement.withPriority(lookup, -1000 - i)))
@@ -121,7 +121,7 @@ public class VarNamePvdr extends CompletionProvider<CompletionParameters>
                 Mt source = extractCtx.func().getArgMt(0);
                 String prefix = extractCtx.func().getArgMt(2).getStringValues().fst().def("");
                 return source.types.map(t -> new Build(t.definition, PhpType.ARRAY)
-                    .keys(t.keys.fap(k -> {
+                    .keys(t.getKeys().fap(k -> {
                         PhpType briefType = k.getBriefTypes().wap(Mt::joinIdeaTypes);
                         return k.keyType.getNames()
                             .map(n -> new Key(prefix + n, k.definition)
@@ -185,7 +185,7 @@ public class VarNamePvdr extends CompletionProvider<CompletionParameters>
         return opt(psi.getParent())
             .fop(toCast(VariableImpl.class))
             .fap(lit -> resolve(lit, false)
-                .fap(globt -> globt.keys)
+                .fap(globt -> globt.getKeys())
                 .flt(k -> k.keyType.getNames().any(n -> n.equals(lit.getName())))
                 .map(t -> t.definition));
     }
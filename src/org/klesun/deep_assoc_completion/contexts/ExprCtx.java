@@ -2,15 +2,14 @@ package org.klesun.deep_assoc_completion.contexts;
 
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiFile;
 import com.jetbrains.php.lang.psi.elements.*;
-import com.jetbrains.php.lang.psi.elements.impl.FieldReferenceImpl;
 import com.jetbrains.php.lang.psi.resolve.types.PhpType;
 import org.klesun.deep_assoc_completion.structures.DeepType;
 import org.klesun.lang.*;
 
-import java.util.Collection;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import static org.klesun.lang.Lang.*;
 
@@ -25,13 +24,63 @@ public class ExprCtx implements IExprCtx {
     final public Opt<ExprCtx> parent;
     final public L<ExprCtx> children = list();
     public boolean doNotCache = false;
+    // resolved under limitResolveDepth(), so result may be cut by a lower depth limit
+    public boolean depthLimited = false;
     public Opt<Integer> typeCnt = non();
+    // functions and files read during resolution, for project cache invalidation
+    private Set<PsiElement> deps = null;
+    // true if resolution was cut by depth/expression/time limit
+    private boolean incomplete = false;
+    // expressions that took result of this one from the search cache
+    private L<ExprCtx> cacheConsumers = null;
+
+    // expression chain from root with consecutive dupes collapsed is kept
+    // incrementally, so that recursion check did not rebuild it every time
+    final private static long CHAIN_HASH_BASE = 1000003;
+    final private static int CHAIN_MASK_BITS = 256;
+    /** ctx that added the last element of the chain, may be this one */
+    final private ExprCtx chainTail;
+    /** ctx that added the pre-last element of the chain */
+    final private Opt<ExprCtx> chainPrev;
+    final private int chainLen;
+    /** polynomial hash of the chain, used to compare its parts */
+    final private long chainHash;
+    /** bloom filter of PSI-s in the chain - to skip the check in most cases */
+    final private long[] chainMask;
+    /** chain is unpacked here on bloom filter hit, reused to not allocate on every check */
+    final private static ThreadLocal<T2<PsiElement[], long[]>> chainBuf =
+        ThreadLocal.withInitial(() -> T2(new PsiElement[64], new long[65]));
 
     private ExprCtx(FuncCtx funcCtx, PsiElement expr, int depth, Opt<ExprCtx> parent) {
         this.funcCtx = funcCtx;
         this.expr = expr;
         this.depth = depth;
         this.parent = parent;
+        if (parent.any(par -> par.expr.equals(expr))) {
+            ExprCtx par = parent.unw();
+            this.chainTail = par.chainTail;
+            this.chainPrev = par.chainPrev;
+            this.chainLen = par.chainLen;
+            this.chainHash = par.chainHash;
+            this.chainMask = par.chainMask;
+        } else {
+            this.chainTail = this;
+            this.chainPrev = parent.map(par -> par.chainTail);
+            this.chainLen = parent.map(par -> par.chainLen).def(0) + 1;
+            this.chainHash = parent.map(par -> par.chainHash).def(0L) * CHAIN_HASH_BASE + hashPsi(expr);
+            this.chainMask = parent.map(par -> par.chainMask.clone())
+                .def(new long[CHAIN_MASK_BITS / 64]);
+            int bit = maskBit(expr);
+            this.chainMask[bit / 64] |= 1L << (bit % 64);
+        }
+    }
+
+    private static long hashPsi(PsiElement psi) {
+        return psi.hashCode() * 0x9E3779B97F4A7C15L + 1;
+    }
+
+    private static int maskBit(PsiElement psi) {
+        return (int)((hashPsi(psi) >>> 32) % CHAIN_MASK_BITS);
     }
 
     public ExprCtx(FuncCtx funcCtx, PsiElement expr, int depth) {
@@ -42,6 +91,10 @@ public class ExprCtx implements IExprCtx {
         return funcCtx;
     }
 
+    FuncCtx funcCtx() {
+        return funcCtx;
+    }
+
     private static FuncCtx initTopCtx(FuncCtx funcCtx, PsiElement expr) {
         Opt<Method> methOpt = Tls.findParent(expr, Method.class);
         Opt<PhpClass> clsOpt = methOpt.fop(m -> Tls.findParent(m, PhpClass.class));
@@ -60,10 +113,18 @@ public class ExprCtx implements IExprCtx {
     private ExprCtx subExpr(PsiElement expr, FuncCtx funcCtx) {
         ExprCtx nextCtx = new ExprCtx(funcCtx, expr, depth + 1, som(this));
         nextCtx.doNotCache = this.doNotCache;
-        children.add(nextCtx);
+        nextCtx.depthLimited = this.depthLimited;
+        addChild(nextCtx);
         return nextCtx;
     }
 
+    /** sub-expressions may be resolved in parallel, see SearchCtx.cnc() */
+    private void addChild(ExprCtx child) {
+        synchronized (children) {
+            children.add(child);
+        }
+    }
+
     public ExprCtx subCtxEmpty() {
         return subExpr(expr, funcCtx.subCtxEmpty());
     }
@@ -125,10 +186,6 @@ public class ExprCtx implements IExprCtx {
         return funcCtx.getSearch();
     }
 
-    public Map<PsiFile, Collection<FieldReferenceImpl>> getFieldRefCache() {
-        return funcCtx.getSearch().fileToFieldRefs;
-    }
-
     public It<DeepType> getThisType() {
         return funcCtx.instGetter.fap(g -> g.get().types);
     }
@@ -145,16 +202,160 @@ public class ExprCtx implements IExprCtx {
         return It(funcCtx.getSearch().findExprType(expr, subExpr(expr, funcCtx)));
     }
 
+    /**
+     * results are still cached: the depth of the ctx tells how much
+     * budget they had, so queries with a bigger one resolve them again
+     */
     public It<DeepType> limitResolveDepth(int depthLimit, PhpExpression expr) {
         int depth = Math.max(funcCtx.getSearch().maxDepth - depthLimit, this.depth);
         ExprCtx nextCtx = new ExprCtx(funcCtx, expr, depth, som(this));
-        nextCtx.doNotCache  = true;
-        children.add(nextCtx);
+        nextCtx.doNotCache = this.doNotCache;
+        nextCtx.depthLimited = true;
+        addChild(nextCtx);
         return It(nextCtx.findExprType(expr));
     }
 
+    public boolean hasAncestor(IExprCtx ancestor) {
+        for (Opt<ExprCtx> node = parent; node.has(); node = node.unw().parent) {
+            if (node.unw() == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** same expression in a sub-tree whose results are not put to the search cache */
+    ExprCtx subCtxUncached() {
+        ExprCtx nextCtx = subExpr(expr, funcCtx);
+        nextCtx.doNotCache = true;
+        return nextCtx;
+    }
+
     public int getDepth()
     {
         return depth;
     }
+
+    /**
+     * imagine sequence: a b c d e f g e f g
+     *                           ^_____^_____
+     * I'm not sure this assumption is right, but I'll try to
+     * treat any case where end repeats pre-end as recursion
+     *
+     * the end must repeat the element k steps before it, so if bloom filter says
+     * the PSI is not in the chain, it's O(1), otherwise the chain is walked once
+     * (O(chain length)) and parts are compared by hash before comparing PSI-s
+     */
+    public boolean isRecursion() {
+        int bit = maskBit(expr);
+        boolean mayRepeat = chainPrev.any(prev -> (prev.chainMask[bit / 64] & (1L << (bit % 64))) != 0);
+        if (!mayRepeat) {
+            return false;
+        }
+        int len = chainLen;
+        T2<PsiElement[], long[]> buf = chainBuf.get();
+        if (buf.a.length < len) {
+            buf = T2(new PsiElement[len * 2], new long[len * 2 + 1]);
+            chainBuf.set(buf);
+        }
+        PsiElement[] psis = buf.a;
+        long[] hashes = buf.b;
+        hashes[0] = 0;
+        for (Opt<ExprCtx> node = som(chainTail); node.has(); node = node.unw().chainPrev) {
+            ExprCtx ctx = node.unw();
+            psis[ctx.chainLen - 1] = ctx.expr;
+            hashes[ctx.chainLen] = ctx.chainHash;
+        }
+        try {
+            long pow = 1;
+            for (int k = 1; k <= len / 2; ++k) {
+                pow *= CHAIN_HASH_BASE;
+                if (!psis[len - 1 - k].equals(expr)) {
+                    continue;
+                }
+                long endHash = hashes[len] - hashes[len - k] * pow;
+                long preEndHash = hashes[len - k] - hashes[len - 2 * k] * pow;
+                if (endHash == preEndHash && partsEqual(psis, len - 2 * k, len - k, k)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            // buffer lives as long as the thread, it should not keep PSI-s
+            Arrays.fill(psis, 0, len, null);
+        }
+    }
+
+    private static boolean partsEqual(PsiElement[] psis, int fromA, int fromB, int length) {
+        for (int i = 0; i < length; ++i) {
+            if (!psis[fromA + i].equals(psis[fromB + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the lock is held only while this ctx state is changed, not during propagation
+     * to dependants, since cache consumers may be anywhere in the expression tree
+     */
+    private synchronized L<ExprCtx> getDependants()
+    {
+        return It.cnc(parent, opt(cacheConsumers).fap(a -> a)).arr();
+    }
+
+    /** should be called with function and file the resolved expression belongs to */
+    public void addDep(PsiElement dep)
+    {
+        boolean isNew;
+        synchronized (this) {
+            if (deps == null) {
+                deps = new HashSet<>();
+            }
+            isNew = deps.add(dep);
+        }
+        if (isNew) {
+            // if parent already has it, then all it's parents have it too
+            getDependants().fch(dep2 -> dep2.addDep(dep));
+        }
+    }
+
+    public void markIncomplete()
+    {
+        boolean wasIncomplete;
+        synchronized (this) {
+            wasIncomplete = incomplete;
+            incomplete = true;
+        }
+        if (!wasIncomplete) {
+            getDependants().fch(ExprCtx::markIncomplete);
+        }
+    }
+
+    /** called when other expression takes result computed in this one from cache */
+    public void addCacheConsumer(ExprCtx consumer)
+    {
+        boolean wasIncomplete;
+        synchronized (this) {
+            if (cacheConsumers == null) {
+                cacheConsumers = list();
+            }
+            cacheConsumers.add(consumer);
+            wasIncomplete = incomplete;
+        }
+        getDeps().fch(consumer::addDep);
+        if (wasIncomplete) {
+            consumer.markIncomplete();
+        }
+    }
+
+    public synchronized L<PsiElement> getDeps()
+    {
+        return deps == null ? list() : L(deps);
+    }
+
+    public synchronized boolean isIncomplete()
+    {
+        return incomplete;
+    }
 }
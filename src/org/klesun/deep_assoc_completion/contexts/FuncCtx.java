@@ -4,6 +4,7 @@ import com.intellij.psi.PsiElement;
 import com.jetbrains.php.lang.psi.elements.*;
 import com.jetbrains.php.lang.psi.resolve.types.PhpType;
 import org.klesun.deep_assoc_completion.helpers.Mt;
+import org.klesun.deep_assoc_completion.helpers.TypeShape;
 import org.klesun.deep_assoc_completion.structures.ArgOrder;
 import org.klesun.deep_assoc_completion.structures.DeepType;
 import org.klesun.deep_assoc_completion.resolvers.ArrCtorRes;
@@ -12,6 +13,8 @@ import org.klesun.deep_assoc_completion.structures.Key;
 import org.klesun.lang.*;
 
 import java.util.HashMap;
+import java.util.Objects;
+import java.util.Set;
 
 /** a node in called function stack trace with args */
 public class FuncCtx extends Lang implements IFuncCtx
@@ -26,12 +29,64 @@ public class FuncCtx extends Lang implements IFuncCtx
     public Opt<Lang.S<Mt>> instGetter = opt(null);
     public Opt<PhpType> clsIdeaType = opt(null);
     public L<T2<String, S<MemIt<DeepType>>>> closureVars = list();
+    // context of the function closure vars were taken from
+    private Opt<FuncCtx> closureOuter = non();
     final private EArgPsiType argPsiType;
     /** use this when you need to reference a real PSI during parsing of PHP Doc */
     public Opt<PsiElement> fakeFileSource = opt(null);
     private L<StackTraceElement> debugCtorTrace = L();
 
     private HashMap<Integer, Mt> cachedArgs = new HashMap<>();
+    private Sig sig = null;
+
+    /**
+     * structural identity of the context for caching, built once and interned
+     * per search, so that equal contexts have same Sig object and comparing
+     * them does not go up the whole call stack
+     */
+    static class Sig
+    {
+        final private EArgPsiType argPsiType;
+        final private Opt<Set<String>> clsFqns;
+        final private boolean hasArgs;
+        final private PsiElement uniqueRef;
+        final private Sig parent;
+        // context closure vars were resolved in, they are same if it's same
+        final private Sig closureOuter;
+        final private int hash;
+
+        private Sig(EArgPsiType argPsiType, Opt<Set<String>> clsFqns, boolean hasArgs, PsiElement uniqueRef, Sig parent, Sig closureOuter)
+        {
+            this.argPsiType = argPsiType;
+            this.clsFqns = clsFqns;
+            this.hasArgs = hasArgs;
+            this.uniqueRef = uniqueRef;
+            this.parent = parent;
+            this.closureOuter = closureOuter;
+            this.hash = Objects.hash(argPsiType, clsFqns, hasArgs, uniqueRef,
+                parent == null ? 0 : parent.hash,
+                closureOuter == null ? 0 : closureOuter.hash);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object thatRaw)
+        {
+            if (this == thatRaw) return true;
+            return Tls.cast(Sig.class, thatRaw)
+                .any(that -> this.hash == that.hash
+                    && this.argPsiType == that.argPsiType
+                    && this.hasArgs == that.hasArgs
+                    // parents are interned, so comparing them by reference is enough
+                    && this.parent == that.parent
+                    && this.closureOuter == that.closureOuter
+                    && Objects.equals(this.uniqueRef, that.uniqueRef)
+                    && this.clsFqns.equals(that.clsFqns));
+        }
+    }
 
     public FuncCtx(SearchCtx search)
     {
@@ -235,7 +290,9 @@ public class FuncCtx extends Lang implements IFuncCtx
     public FuncCtx withClosure(L<T2<String, S<MemIt<DeepType>>>> closureVars, IFuncCtx outsideCtx)
     {
         FuncCtx closCtx = new FuncCtx(parent.def(this), argGetters, uniqueRef.def(null), EArgPsiType.INDIRECT);
-        closCtx.closureVars = closureVars; // probably should add to caching criteria...
+        closCtx.closureVars = closureVars;
+        closCtx.closureOuter = Tls.cast(FuncCtx.class, outsideCtx)
+            .flt(outside -> closureVars.size() > 0);
         closCtx.fakeFileSource = this.fakeFileSource;
         closCtx.clsIdeaType = outsideCtx.getSelfType();
         closCtx.instGetter = outsideCtx.getInstGetter();
@@ -272,29 +329,83 @@ public class FuncCtx extends Lang implements IFuncCtx
         return instGetter;
     }
 
-    private L<Object> getHashValues()
+    /**
+     * should not be called before the sub context is fully initialized,
+     * since clsIdeaType and instGetter are assigned after constructor
+     */
+    private Sig getSig()
+    {
+        if (sig == null) {
+            sig = makeSig(search.getCallStringLimit());
+        }
+        return sig;
+    }
+
+    /**
+     * @param callsLeft - how many last call sites of the stack make the identity, 0 for
+     *  all - contexts reached through different outer calls become equal past that limit
+     */
+    private Sig makeSig(int callsLeft)
+    {
+        boolean hasArgs = hasArgs();
+        PsiElement ref = hasArgs ? uniqueRef.def(null) : null;
+        Sig parentSig = null;
+        if (ref != null && callsLeft == 0) {
+            parentSig = parent.map(FuncCtx::getSig).def(null);
+        } else if (ref != null && callsLeft > 1) {
+            parentSig = parent.map(par -> par.makeSig(callsLeft - 1)).def(null);
+        }
+        Sig closureSig = closureOuter.map(FuncCtx::getSig).def(null);
+        Sig built = new Sig(argPsiType, clsIdeaType.map(ArrCtorRes::ideaTypeToFqn), hasArgs, ref, parentSig, closureSig);
+        return search.internFuncSig(built);
+    }
+
+    /**
+     * identity of this context that does not refer to the search it was created in,
+     * empty if resolution depends on args or closure vars passed from outside
+     */
+    public Opt<L<Object>> getContextFreeKey()
     {
-        L<Object> values = list();
-        values.add(argPsiType);
-        values.add(clsIdeaType.map(ArrCtorRes::ideaTypeToFqn));
-        values.add(hasArgs());
-        if (!hasArgs()) return values;
-        values.add(uniqueRef);
-        if (!uniqueRef.has()) return values;
-        values.add(parent);
-        return values;
+        boolean isContextFree = argGetters.size() == 0
+            && closureVars.size() == 0
+            && !fakeFileSource.has()
+            // $this in a class method is determined by the class alone
+            && (!instGetter.has() || argPsiType == EArgPsiType.THIS_CLS);
+        if (!isContextFree) {
+            return non();
+        }
+        L<Object> key = list(argPsiType, clsIdeaType.map(ArrCtorRes::ideaTypeToFqn));
+        return som(key);
+    }
+
+    /**
+     * identity of this context by the shape of passed args rather than by the call
+     * PSI, so that calls passing same shaped args could share the resolved function,
+     * empty if args could not be fingerprinted or it is a doc context
+     */
+    public Opt<L<Object>> getShapeKey()
+    {
+        if (fakeFileSource.has() || closureVars.size() > 0 && !closureOuter.has()) {
+            return non();
+        }
+        It<Mt> argMts = Tls.range(0, argGetters.size())
+            .map(i -> getCached(i, argGetters.get(i)));
+        It<Mt> instMts = instGetter.map(getter -> getter.get()).itr();
+        return TypeShape.of(It.cnc(argMts, instMts))
+            .map(shapes -> list(argPsiType, clsIdeaType.map(ArrCtorRes::ideaTypeToFqn),
+                variadicOrders, instGetter.has(), closureOuter.map(FuncCtx::getSig), shapes));
     }
 
     public int hashCode()
     {
-        return getHashValues().hashCode();
+        return getSig().hash;
     }
 
+    /** contexts from different searches are never equal */
     public boolean equals(Object thatRaw)
     {
         return Tls.cast(FuncCtx.class, thatRaw)
-            .map(that -> this.getHashValues().equals(that.getHashValues()))
-            .def(false);
+            .any(that -> this.getSig() == that.getSig());
     }
 
     /** for debug */
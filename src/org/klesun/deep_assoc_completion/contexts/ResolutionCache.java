@@ -0,0 +1,181 @@
+package org.klesun.deep_assoc_completion.contexts;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.*;
+import com.jetbrains.php.lang.psi.elements.Function;
+import org.jetbrains.annotations.NotNull;
+import org.klesun.deep_assoc_completion.structures.DeepType;
+import org.klesun.lang.*;
+
+import java.util.*;
+
+/**
+ * project-level cache of types resolved in a context-free function
+ * context (no args, no closure vars), so that next Ctrl+Space does
+ * not resolve same library functions from scratch again
+ *
+ * each entry remembers the functions and files it read during resolution,
+ * PSI change in one method evicts only entries that depended on it
+ *
+ * keys and values of cached types are still lazy, so an entry keeps reachable
+ * the search that resolved it, with everything it remembered - that is why
+ * the cache is bounded by memory that searches account, not by entry count
+ */
+public class ResolutionCache extends Lang implements Disposable
+{
+    final private static int MAX_ENTRIES = 2000;
+    // in SearchCtx memory accounting, which is very rough
+    final private static long MAX_BYTES = 128L * 1024 * 1024;
+
+    public static class Entry
+    {
+        final public MemIt<DeepType> types;
+        final public Set<PsiElement> deps;
+        // memory the search accounted while resolving the types
+        final public long bytes;
+
+        Entry(MemIt<DeepType> types, Set<PsiElement> deps, long bytes)
+        {
+            this.types = types;
+            this.deps = deps;
+            this.bytes = bytes;
+        }
+    }
+
+    final private Map<PsiElement, Set<L<Object>>> depToSigs = new HashMap<>();
+    // in access order, so that the least recently used entries were evicted first
+    final private Map<L<Object>, Entry> sigToEntry = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    public ResolutionCache(Project project)
+    {
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+            public void childAdded(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childRemoved(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childReplaced(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childMoved(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childrenChanged(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void propertyChanged(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+        }, this);
+    }
+
+    public static Opt<ResolutionCache> inst(Project project)
+    {
+        return opt(ServiceManager.getService(project, ResolutionCache.class));
+    }
+
+    /**
+     * the PSI whose change should evict results that read the passed
+     * expression: the innermost function if any, otherwise the file
+     */
+    public static Opt<PsiElement> getScope(PsiElement psi)
+    {
+        return Opt.fst(
+            () -> Tls.cast(Function.class, psi).map(f -> (PsiElement)f),
+            () -> Tls.findParent(psi, Function.class, a -> true).map(f -> (PsiElement)f),
+            () -> opt(psi.getContainingFile())
+        );
+    }
+
+    private void unlinkDeps(L<Object> sig, Entry entry)
+    {
+        for (PsiElement dep: entry.deps) {
+            opt(depToSigs.get(dep)).thn(sigs -> {
+                sigs.remove(sig);
+                if (sigs.isEmpty()) {
+                    depToSigs.remove(dep);
+                }
+            });
+        }
+    }
+
+    public synchronized Opt<Entry> get(L<Object> sig)
+    {
+        Opt<Entry> entryOpt = opt(sigToEntry.get(sig));
+        if (entryOpt.any(entry -> It(entry.deps).any(dep -> !dep.isValid()))) {
+            remove(sig);
+            return non();
+        }
+        return entryOpt;
+    }
+
+    public synchronized void put(L<Object> sig, Entry entry)
+    {
+        remove(sig);
+        if (entry.bytes > MAX_BYTES / 4) {
+            // would push out a lot of others for one result
+            return;
+        }
+        sigToEntry.put(sig, entry);
+        bytes += entry.bytes;
+        for (PsiElement dep: entry.deps) {
+            if (!depToSigs.containsKey(dep)) {
+                depToSigs.put(dep, new HashSet<>());
+            }
+            depToSigs.get(dep).add(sig);
+        }
+        // get() would reorder an access ordered map, so entries are taken from the iterator
+        Iterator<Map.Entry<L<Object>, Entry>> eldest = sigToEntry.entrySet().iterator();
+        while ((bytes > MAX_BYTES || sigToEntry.size() > MAX_ENTRIES) && eldest.hasNext()) {
+            Map.Entry<L<Object>, Entry> evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.getValue().bytes;
+            unlinkDeps(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    private void remove(L<Object> sig)
+    {
+        opt(sigToEntry.remove(sig)).thn(entry -> {
+            bytes -= entry.bytes;
+            unlinkDeps(sig, entry);
+        });
+    }
+
+    /** evict all results that read something in this function or file */
+    public synchronized void invalidate(PsiElement dep)
+    {
+        opt(depToSigs.remove(dep)).thn(sigs -> L(sigs).fch(this::remove));
+    }
+
+    public synchronized void clear()
+    {
+        sigToEntry.clear();
+        depToSigs.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size()
+    {
+        return sigToEntry.size();
+    }
+
+    private void onChange(PsiTreeChangeEvent event)
+    {
+        Opt<PsiElement> changed = opt(event.getParent())
+            .elf(() -> opt(event.getElement()))
+            .elf(() -> opt(event.getFile()));
+        if (!changed.has() || changed.unw() instanceof PsiDirectory) {
+            // file created, removed, renamed... - may affect anything
+            clear();
+        } else {
+            PsiElement psi = changed.unw();
+            Opt<Function> func = Tls.cast(Function.class, psi)
+                .elf(() -> Tls.findParent(psi, Function.class, a -> true));
+            if (func.has()) {
+                invalidate(func.unw());
+            } else {
+                // class field default, phpdoc, method signature... - evict whole file
+                opt(psi.getContainingFile()).thn(this::invalidate);
+            }
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        clear();
+    }
+}
@@ -1,20 +1,30 @@
 package org.klesun.deep_assoc_completion.contexts;
 
 import com.intellij.codeInsight.completion.CompletionParameters;
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiFile;
+import com.jetbrains.php.lang.psi.elements.Function;
 import com.jetbrains.php.lang.psi.elements.PhpExpression;
-import com.jetbrains.php.lang.psi.elements.impl.FieldReferenceImpl;
+import com.jetbrains.php.lang.psi.resolve.types.PhpType;
 import org.klesun.deep_assoc_completion.entry.DeepSettings;
+import org.klesun.deep_assoc_completion.helpers.Mt;
+import org.klesun.deep_assoc_completion.helpers.TypeShape;
 import org.klesun.deep_assoc_completion.resolvers.DirectTypeResolver;
+import org.klesun.deep_assoc_completion.structures.Build;
 import org.klesun.deep_assoc_completion.structures.DeepType;
+import org.klesun.deep_assoc_completion.structures.Key;
+import org.klesun.deep_assoc_completion.structures.KeyType;
 import org.klesun.deep_assoc_completion.structures.PsiSig;
 import org.klesun.lang.*;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
 
 public class SearchCtx extends Lang
 {
@@ -27,21 +37,72 @@ public class SearchCtx extends Lang
     private Opt<Double> timeout = opt(null);
     final public Opt<Project> project;
     // for performance measurement
-    private int expressionsResolved = 0;
-    // direct type cache
-    final private Map<PsiSig, Iterable<DeepType>> ctxToExprToResult = new HashMap<>();
+    final private AtomicInteger expressionsResolved = new AtomicInteger(0);
+    // shared with whoever measures throughput of many searches, like tests
+    private Opt<AtomicInteger> workCounter = non();
+    // approximate bytes retained by structures created in this search, it only grows
+    // during the search since nothing is freed till the end, so it is the peak as well
+    final private AtomicLong memoryUsed = new AtomicLong(0);
+    // very rough sizes of the retained structures with all their eager allocations
+    final private static int DEEP_TYPE_BYTES = 500;
+    // types without keys and with empty parts shared, see DeepType.add*()
+    final private static int SCALAR_TYPE_BYTES = 100;
+    final private static int MEM_IT_ELEMENT_BYTES = 8;
+    final private static int KEY_BYTES = 300;
+    final private static int TYPE_GETTER_BYTES = 48;
+    // direct type cache, with the expression context that resolved it
+    // (maps are concurrent since branches of a search may be resolved in parallel)
+    // and the depth limit it was resolved under
+    final private Map<PsiSig, T3<ExprCtx, Iterable<DeepType>, Integer>> ctxToExprToResult = new ConcurrentHashMap<>();
+    // to make equal function contexts share same identity object
+    final private Map<FuncCtx.Sig, FuncCtx.Sig> funcSigs = new ConcurrentHashMap<>();
+    // return types of functions by shape of passed args, with depth and context they were resolved at
+    final private Map<L<Object>, T3<Integer, MemIt<DeepType>, IExprCtx>> funcSummaries = new ConcurrentHashMap<>();
+    // functions called at least once - args are fingerprinted only from the second call, since
+    // most functions are called once in a search and the fingerprint resolves all args eagerly
+    final private Set<Function> calledFuncs = ConcurrentHashMap.newKeySet();
+    final private AtomicInteger funcSummaryHits = new AtomicInteger(0);
+    final private AtomicInteger funcSummaryMisses = new AtomicInteger(0);
+    private boolean shareFuncSummaries = false;
+    private boolean mergeShapes = false;
+    // array types of an expression past this count are merged into one, 0 - never
+    private int widenUnionsAbove = 0;
+    final private AtomicInteger unionsWidened = new AtomicInteger(0);
+    // functions being resolved by fixpoint iteration in each thread, see solveFixpoint()
+    final private static int MAX_FIXPOINT_ITERATIONS = 4;
+    final private boolean fixpointRecursion;
+    final private ThreadLocal<Map<Function, Fixpoint>> fixpoints = ThreadLocal.withInitial(HashMap::new);
+    // expression cache effectiveness, to tune the call string limit
+    final private AtomicInteger cacheLookups = new AtomicInteger(0);
+    final private AtomicInteger cacheHits = new AtomicInteger(0);
+    // how many last call sites identify a function context, 0 - all
+    final private int callStringLimit;
     // usage type cache
-    final public Map<PhpExpression, MemIt<DeepType>> exprToUsageResult = new HashMap<>();
-    public Opt<Integer> overrideMaxExpr = non();
-    final public Map<PsiFile, Collection<FieldReferenceImpl>> fileToFieldRefs = new HashMap<>();
-    public Opt<MemIt<DeepType>> globalsVarType = non();
+    final public Map<PhpExpression, MemIt<DeepType>> exprToUsageResult = new ConcurrentHashMap<>();
+    public volatile Opt<Integer> overrideMaxExpr = non();
+    // usage-based resolution depth, set by iterative deepening
+    public volatile Opt<Integer> overrideUsageDepth = non();
+    public volatile Opt<MemIt<DeepType>> globalsVarType = non();
     public boolean isMain = false;
+    // results of context-free expressions shared between searches
+    private Opt<ResolutionCache> projectCache = non();
+    // search whose limits apply in this thread, see withBudget()
+    final private static ThreadLocal<SearchCtx> budgetOwner = new ThreadLocal<>();
+    // resolve independent type sources concurrently, see cnc()
+    private boolean parallel = false;
+    // sources of this search being resolved in the pool right now
+    final private AtomicInteger forksRunning = new AtomicInteger(0);
 
-    public Opt<ExprCtx> currentExpr = non();
+    public volatile Opt<ExprCtx> currentExpr = non();
 
     public SearchCtx(Project project)
     {
         this.project = opt(project);
+        this.callStringLimit = this.project
+            .map(p -> DeepSettings.inst(p).callStringLimit)
+            .def(0);
+        this.fixpointRecursion = this.project
+            .any(p -> DeepSettings.inst(p).fixpointRecursion);
     }
 
     public SearchCtx(CompletionParameters parameters)
@@ -55,18 +116,138 @@ public class SearchCtx extends Lang
         return this;
     }
 
+    /**
+     * note that this only stops resolution of new expressions, to also stop
+     * iterating over already resolved ones, wrap it in Interrupt.withDeadline()
+     */
     public SearchCtx setTimeout(double timeout)
     {
         this.timeout = opt(timeout);
         return this;
     }
 
+    /** resolved expressions will be also added to this counter, so that it did not have to keep the search */
+    public SearchCtx countWorkIn(AtomicInteger counter)
+    {
+        this.workCounter = som(counter);
+        return this;
+    }
+
     public SearchCtx setDebug(boolean debug)
     {
         this.debug = debug;
         return this;
     }
 
+    /**
+     * allow taking results of context-free expressions from previous searches
+     * and storing them for following searches in this project
+     */
+    public SearchCtx enableProjectCache()
+    {
+        this.projectCache = project
+            .flt(project -> DeepSettings.inst(project).projectCacheEnabled)
+            .fop(ResolutionCache::inst);
+        return this;
+    }
+
+    /**
+     * resolve independent type sources passed to cnc() in the IDEA's fork-join
+     * pool, makes sense only when the whole result is going to be iterated
+     */
+    public SearchCtx enableParallel()
+    {
+        this.parallel = project
+            .any(project -> DeepSettings.inst(project).parallelResolution);
+        return this;
+    }
+
+    /**
+     * reuse return type of a function between calls passing args of same shape,
+     * definitions of reused types point to the call resolved first, so it is
+     * meant for completion where only key names and value types matter
+     */
+    public SearchCtx enableFuncSummaries()
+    {
+        this.shareFuncSummaries = true;
+        return this;
+    }
+
+    /**
+     * let unqShapes() drop structurally equal types reached through different PSI,
+     * definitions of dropped types are lost, so it is meant for completion
+     */
+    public SearchCtx enableShapeMerging()
+    {
+        this.mergeShapes = true;
+        return this;
+    }
+
+    /**
+     * bound the work on expressions with hundreds of array types, that grow
+     * multiplicatively through fap() chains - per-type precision and key
+     * definitions are lost, so it is meant for completion as well
+     */
+    public SearchCtx enableWidening()
+    {
+        this.widenUnionsAbove = project
+            .map(project -> DeepSettings.inst(project).unionWidenLimit)
+            .def(0);
+        return this;
+    }
+
+    /**
+     * types taken from project cache have lazy key getters bound to the search
+     * that created them, so their expressions should be limited by the search
+     * reading them now rather than by the (possibly exhausted) original one
+     */
+    private SearchCtx getBudget()
+    {
+        SearchCtx owner = budgetOwner.get();
+        return owner != null ? owner : this;
+    }
+
+    /**
+     * a fresh search only holding limits, to let a background task resolve types of this
+     * one a bit further without changing this search's limits other threads are reading
+     */
+    public SearchCtx makeBudget(int maxExpressions)
+    {
+        SearchCtx budget = new SearchCtx(project.def(null)).setDepth(maxDepth);
+        budget.overrideMaxExpr = som(maxExpressions);
+        return budget;
+    }
+
+    /** run the process with limits of this search applied to lazy types of any search */
+    public <T> T withBudget(S<T> process)
+    {
+        return withBudgetOf(this, process);
+    }
+
+    private static <T> T withBudgetOf(SearchCtx owner, S<T> process)
+    {
+        SearchCtx prev = budgetOwner.get();
+        budgetOwner.set(owner);
+        try {
+            return process.get();
+        } finally {
+            budgetOwner.set(prev);
+        }
+    }
+
+    /**
+     * forget results remembered by this search once nothing will be resolved in it, since
+     * types it put to project cache keep it reachable - their lazy getters still work then,
+     * they just resolve expressions again
+     */
+    public void releaseCaches()
+    {
+        ctxToExprToResult.clear();
+        exprToUsageResult.clear();
+        funcSummaries.clear();
+        calledFuncs.clear();
+    }
+
     public Integer getMaxExpressions()
     {
         // max expressions per single search - guard
@@ -80,35 +261,98 @@ public class SearchCtx extends Lang
         ).def(10000);
     }
 
-    private static <T> boolean endsWith(L<T> superList, L<T> subList)
+    /**
+     * for work done outside of findExprType(), like resolving call sites found in
+     * other files, to be limited by expression limit as well - false if it is over
+     */
+    public boolean takeExpressionBudget()
     {
-        for (int i = 0; i < subList.size(); ++i) {
-            if (i >= superList.size() || !superList.get(-i - 1).equals(subList.get(-i - 1))) {
-                return false;
-            }
+        SearchCtx budget = getBudget();
+        return budget.expressionsResolved.incrementAndGet() <= budget.getMaxExpressions();
+    }
+
+    public long getMaxMemory()
+    {
+        // guard against wide unions, like 300 row shapes with 80 keys each
+        return project
+            .map(project -> DeepSettings.inst(project).searchMemoryLimitMb)
+            .def(512) * 1024L * 1024L;
+    }
+
+    private void addMemory(long bytes)
+    {
+        getBudget().memoryUsed.addAndGet(bytes);
+    }
+
+    /** called for every type remembered in the result of an expression */
+    private void accountType(DeepType type)
+    {
+        addMemory(MEM_IT_ELEMENT_BYTES);
+        if (!type.hasKeySource()) {
+            // keyless types are small, so they are not worth remembering whether counted
+            addMemory(SCALAR_TYPE_BYTES);
+            return;
+        }
+        boolean isNew = type.observeKeys(k -> addMemory(
+            KEY_BYTES + MEM_IT_ELEMENT_BYTES + k.typeGetters.size() * TYPE_GETTER_BYTES));
+        if (isNew) {
+            addMemory(DEEP_TYPE_BYTES);
         }
-        return true;
     }
 
-    private static boolean isRecursion(L<PsiElement> psiTrace)
+    /** current approximation of a recursive function's returns */
+    private static class Fixpoint
     {
-        // imagine sequence: a b c d e f g e f g
-        //                           ^_____^_____
-        // I'm not sure this assumption is right, but I'll try to
-        // treat any case where end repeats pre-end as recursion
-        for (int i = 0; i < psiTrace.size() / 2; ++i) {
-            L<PsiElement> subList = psiTrace.sub(psiTrace.size() - i * 2 - 2, i + 1);
-            if (endsWith(psiTrace, subList)) {
-                return true;
-            }
+        L<DeepType> approx = list();
+        boolean reentered = false;
+        // context the current iteration is resolved in
+        IExprCtx root = null;
+    }
+
+    /**
+     * placeholder of expression being resolved - empty result for recursion in
+     * same thread, other threads resolve the expression on their own meanwhile
+     */
+    private static class Pending implements Iterable<DeepType>
+    {
+        final Thread thread = Thread.currentThread();
+
+        public Iterator<DeepType> iterator()
+        {
+            return Collections.emptyIterator();
         }
-        return false;
     }
 
-    private Opt<Iterable<DeepType>> takeFromCache(IExprCtx ctx, PhpExpression expr)
+    /**
+     * depth left to the limit is the budget result was resolved with - if it
+     * may be cut by the limit, a query with bigger budget should resolve it again
+     *
+     * whether it was cut is only known once it is iterated till the end, so
+     * till then it is reused only by queries with same or smaller budget,
+     * except for the ones in same round not involving depth limited results,
+     * where incomplete results are reused till the next round of deepening
+     */
+    private boolean hadEnoughDepth(T3<ExprCtx, Iterable<DeepType>, Integer> cached, ExprCtx exprCtx)
     {
-        PsiSig sig = new PsiSig(expr, ctx);
-        return opt(ctxToExprToResult.get(sig));
+        int maxDepth = getBudget().maxDepth;
+        boolean isFinished = cached.b instanceof MemIt
+            && ((MemIt<DeepType>)cached.b).isComplete()
+            && !cached.a.isIncomplete();
+        if (isFinished) {
+            return true;
+        }
+        if (!cached.a.depthLimited && !exprCtx.depthLimited && cached.c == maxDepth) {
+            return true;
+        }
+        return cached.c - cached.a.depth >= maxDepth - exprCtx.depth;
+    }
+
+    private Opt<T3<ExprCtx, Iterable<DeepType>, Integer>> takeFromCache(PsiSig sig, ExprCtx exprCtx)
+    {
+        return opt(ctxToExprToResult.get(sig))
+            .flt(cached -> cached.b instanceof Pending
+                ? ((Pending)cached.b).thread == Thread.currentThread()
+                : hadEnoughDepth(cached, exprCtx));
     }
 
     public static String formatPsi(PsiElement expr)
@@ -118,71 +362,245 @@ public class SearchCtx extends Lang
         return Tls.singleLine(expr.getText(), 120) + " - " + expr.getContainingFile().getName() + ":" + phpLineNum;
     }
 
-    private void putToCache(IExprCtx ctx, PhpExpression expr, Iterable<DeepType> result)
+    private void putToCache(PsiSig sig, ExprCtx ctx, Iterable<DeepType> result)
     {
-        PsiSig sig = new PsiSig(expr, ctx);
-        ctxToExprToResult.remove(sig);
-        ctxToExprToResult.put(sig, result);
+        ctxToExprToResult.put(sig, T3(ctx, result, getBudget().maxDepth));
     }
 
-    private boolean shouldCache(ExprCtx exprCtx)
+    /**
+     * forget results cut by depth or other limits before the next round of
+     * iterative deepening, so that it resolved them again - complete ones are reused
+     *
+     * usage results do not track completeness, so they are all dropped
+     */
+    public void dropIncomplete()
     {
-        return !exprCtx.doNotCache;
+        ctxToExprToResult.values().removeIf(cached ->
+            cached.a.isIncomplete() || cached.b instanceof Pending);
+        exprToUsageResult.clear();
+        funcSummaries.clear();
+    }
+
+    /** key in the project cache, empty if result depends on passed args or it's a doc PSI */
+    private static Opt<L<Object>> getProjectSig(PhpExpression expr, ExprCtx ctx)
+    {
+        return ctx.funcCtx().getContextFreeKey()
+            .flt(ctxKey -> opt(expr.getContainingFile())
+                .any(file -> file.getContainingDirectory() != null))
+            .map(ctxKey -> list(expr, ctxKey));
+    }
+
+    private static void addDeps(PhpExpression expr, ExprCtx exprCtx)
+    {
+        PsiElement realPsi = exprCtx.getRealPsi(expr);
+        ResolutionCache.getScope(realPsi).thn(exprCtx::addDep);
+        opt(realPsi.getContainingFile()).thn(exprCtx::addDep);
     }
 
-    private static L<PsiElement> getExprChain(ExprCtx ctx)
+    private Iterable<DeepType> resolveDirectly(PhpExpression expr, ExprCtx exprCtx)
     {
-        L<PsiElement> fromEnd = list();
-        while (ctx != null) {
-            if (!fromEnd.lst().equals(som(ctx.expr))) {
-                fromEnd.add(ctx.expr);
+        It<DeepType> tit = new DirectTypeResolver(exprCtx).resolve(expr)
+            //.lmt(1000) // .lmt() is just a safety measure, it should not be needed if everything works properly
+            .unq() // .unq() before caching is important since types taken from cache would grow in count exponentially otherwise
+            .btw(this::accountType)
+            ;
+        if (!projectCache.has()) {
+            return new MemIt<>(tit).whenCut(exprCtx::markIncomplete);
+        }
+        ResolutionCache cache = projectCache.unw();
+        Opt<L<Object>> sigOpt = getProjectSig(expr, exprCtx);
+        if (!sigOpt.has()) {
+            return new MemIt<>(tit).whenCut(exprCtx::markIncomplete);
+        }
+        L<Object> sig = sigOpt.unw();
+        Opt<ResolutionCache.Entry> fromCache = cache.get(sig);
+        if (fromCache.has()) {
+            ResolutionCache.Entry entry = fromCache.unw();
+            entry.deps.forEach(exprCtx::addDep);
+            return entry.types;
+        }
+        // what the search accounted meanwhile is what the entry keeps reachable through
+        // lazy getters of the types, roughly, since parallel branches count there too
+        SearchCtx budget = getBudget();
+        Mutable<Long> memoryAtStart = new Mutable<>(0L);
+        It<DeepType> measured = It(() -> {
+            memoryAtStart.set(budget.memoryUsed.get());
+            return tit.iterator();
+        });
+        Mutable<MemIt<DeepType>> mitRef = new Mutable<>(null);
+        MemIt<DeepType> mit = new MemIt<>(measured.thn(cnt -> {
+            // store only when all types are known, since
+            // limits of other searches may be different
+            if (!exprCtx.isIncomplete() && !Interrupt.isPastDeadline()) {
+                Set<PsiElement> deps = new HashSet<>(exprCtx.getDeps());
+                long bytes = Math.max(0, budget.memoryUsed.get() - memoryAtStart.get());
+                cache.put(sig, new ResolutionCache.Entry(mitRef.get(), deps, bytes));
             }
-            ctx = ctx.parent.def(null);
+        })).whenCut(exprCtx::markIncomplete);
+        mitRef.set(mit);
+        return mit;
+    }
+
+    /**
+     * drops types structurally equal to one met before in these types, so that
+     * the same shape reached through different PSI was not listed many times
+     *
+     * fingerprint resolves keys of the type a few levels deep, so it is only
+     * taken lazily where types are consumed, not on every resolved expression
+     */
+    public It<DeepType> unqShapes(It<DeepType> types)
+    {
+        if (!mergeShapes) {
+            return types;
+        }
+        Set<Object> seenShapes = ConcurrentHashMap.newKeySet();
+        return types.flt(type -> TypeShape.of(type)
+            .map(seenShapes::add)
+            .def(true));
+    }
+
+    /** arrays that can be merged into a widened one without losing what they are */
+    private static boolean isWidenable(DeepType type)
+    {
+        return type.hasKeySource()
+            && type.stringValue == null
+            && !type.returnTypeGetters.has()
+            && !type.ctorArgs.has()
+            && !type.clsRefType.has()
+            && !type.getProps().has()
+            && !type.pdoFetchTypes.has()
+            && !type.generics.has();
+    }
+
+    /** one key for all keys of merged types whose name is of the kind, if there are any */
+    private static It<Key> makeWidenedDynaKey(
+        PhpExpression expr, Mt mergedMt,
+        Predicate<DeepType> isNameOfKind, F<PsiElement, KeyType> makeKeyType
+    ) {
+        MemIt<Key> srcKeys = mergedMt.types.fap(t -> t.getKeys())
+            .flt(k -> k.keyType.getTypes().any(isNameOfKind)).mem();
+        return It(() -> som(srcKeys)
+            .flt(keys -> keys.has())
+            .map(keys -> new Key(makeKeyType.apply(expr), expr)
+                .addType(() -> new Mt(keys.fap(k -> k.getValueTypes())), PhpType.MIXED))
+            .iterator());
+    }
+
+    private static DeepType makeWidened(PhpExpression expr, It<DeepType> merged)
+    {
+        Mt mergedMt = new Mt(merged);
+        It<Key> namedKeys = mergedMt.getKeyNames()
+            .map(name -> new Key(name, expr)
+                .addType(() -> mergedMt.getKey(name), PhpType.MIXED));
+        // `$rows[$i]` and `$byName[$name]` keys, only checked after named ones are over
+        It<Key> numKey = makeWidenedDynaKey(expr, mergedMt,
+            nameType -> nameType.isNumber(), KeyType::integer);
+        It<Key> anyNameKey = makeWidenedDynaKey(expr, mergedMt,
+            nameType -> nameType.stringValue == null && !nameType.isNumber(), KeyType::unknown);
+        return new Build(expr, PhpType.ARRAY)
+            .keys(It.cnc(namedKeys, numKey, anyNameKey)).get()
+            .btw(t -> t.isWidened = true);
+    }
+
+    /**
+     * first `limit` array types are kept as is, the rest are merged into one that takes
+     * the place of the array type number `limit + 1`, types of other kinds, like string
+     * values or closures, are kept as is and do not count to the limit
+     *
+     * only the result of this search is widened - project cache gets exact types
+     * from resolveDirectly(), so searches without widening are not affected
+     */
+    private Iterable<DeepType> widen(Iterable<DeepType> types, PhpExpression expr)
+    {
+        int limit = widenUnionsAbove;
+        if (limit <= 0) {
+            return types;
         }
-        return fromEnd.rvr();
+        MemIt<DeepType> all = new MemIt<>(types);
+        Mutable<Integer> widenableCnt = new Mutable<>(0);
+        return new MemIt<>(all.fap(t -> {
+            if (!isWidenable(t)) {
+                return som(t);
+            }
+            widenableCnt.set(widenableCnt.get() + 1);
+            if (widenableCnt.get() <= limit) {
+                return som(t);
+            } else if (widenableCnt.get() == limit + 1) {
+                unionsWidened.incrementAndGet();
+                return som(makeWidened(expr, all
+                    .flt(SearchCtx::isWidenable)
+                    .flt((merged, i) -> i >= limit)));
+            } else {
+                return non();
+            }
+        }));
+    }
+
+    private boolean shouldCache(ExprCtx exprCtx)
+    {
+        return !exprCtx.doNotCache;
     }
 
     public Iterable<DeepType> findExprType(PhpExpression expr, ExprCtx exprCtx)
     {
         currentExpr = som(exprCtx);
+        ProgressManager.checkCanceled();
 
         long time = System.nanoTime();
-        double seconds = (time - startTime) / 1000000000.0;
         if (!debug && (time - lastReportTime) / 1000000000.0 > 1.0) {
             lastReportTime = System.nanoTime();
             //System.out.println("deep-assoc-completion warning at " + time + ": type resolution takes " + seconds + " seconds " + expr.getText() + " " + expr.getClass());
         }
 
-        if (exprCtx.depth > maxDepth) {
+        SearchCtx budget = getBudget();
+        if (projectCache.has()) {
+            addDeps(expr, exprCtx);
+        }
+        if (exprCtx.depth > budget.maxDepth) {
+            exprCtx.markIncomplete();
             return It.non();
         }
-        L<PsiElement> chain = getExprChain(exprCtx);
-        if (++expressionsResolved > getMaxExpressions()) {
+        workCounter.thn(AtomicInteger::incrementAndGet);
+        if (budget.expressionsResolved.incrementAndGet() > budget.getMaxExpressions()) {
+            exprCtx.markIncomplete();
             return It.non();
-        } else if (timeout.flt(tout -> seconds > tout).has()) {
+        } else if (budget.timeout.flt(tout -> (time - budget.startTime) / 1000000000.0 > tout).has()) {
+            exprCtx.markIncomplete();
+            return It.non();
+        } else if (budget.memoryUsed.get() > budget.getMaxMemory()) {
+            exprCtx.markIncomplete();
             return It.non();
         }
 
-        Opt<Iterable<DeepType>> result = takeFromCache(exprCtx, expr);
+        PsiSig sig = new PsiSig(expr, exprCtx);
+        cacheLookups.incrementAndGet();
+        Opt<T3<ExprCtx, Iterable<DeepType>, Integer>> cachedOpt = takeFromCache(sig, exprCtx);
+        Opt<Iterable<DeepType>> result = cachedOpt
+            .map(cached -> {
+                if (projectCache.has()) {
+                    cached.a.addCacheConsumer(exprCtx);
+                }
+                return cached.b;
+            });
         if (result.has()) {
+            // with call string limit it may come from a different outer path
+            // that shares last k calls with this one - this is the point of the limit
+            cacheHits.incrementAndGet();
             if (debug) {
                 //System.out.println(indent + "<< TAKING RESULT FROM CACHE");
             }
-        } else if (isRecursion(chain)) {
+        } else if (exprCtx.isRecursion()) {
+            exprCtx.markIncomplete();
             return It.non();
         } else {
             if (shouldCache(exprCtx)) {
-                putToCache(exprCtx, expr, list());
+                putToCache(sig, exprCtx, new Pending());
             }
 
-            It<DeepType> tit = new DirectTypeResolver(exprCtx).resolve(expr)
-                //.lmt(1000) // .lmt() is just a safety measure, it should not be needed if everything works properly
-                .unq() // .unq() before caching is important since types taken from cache would grow in count exponentially otherwise
-                ;
-            Iterable<DeepType> mit = new MemIt<>(tit);
+            Iterable<DeepType> mit = widen(resolveDirectly(expr, exprCtx), expr);
             result = som(mit);
             if (shouldCache(exprCtx)) {
-                result.thn(mt -> putToCache(exprCtx, expr, mit));
+                result.thn(mt -> putToCache(sig, exprCtx, mit));
             }
         }
 
@@ -196,8 +614,226 @@ public class SearchCtx extends Lang
             ;
     }
 
+    /**
+     * check and take in one step, so that concurrent callers did not go past the limit
+     * together - a batch takes at most as many slots as there are cores, since the
+     * pool does not run more of its sources at once anyway
+     *
+     * @return taken slot count, 0 if there are not enough free slots
+     */
+    private int reserveForks(int sourceCnt, int maxForks)
+    {
+        int slots = Math.min(sourceCnt, maxForks);
+        while (true) {
+            int running = forksRunning.get();
+            if (running + slots > maxForks) {
+                return 0;
+            } else if (forksRunning.compareAndSet(running, running + slots)) {
+                return slots;
+            }
+        }
+    }
+
+    /**
+     * like It.cnc(), but in parallel mode sources are resolved concurrently in
+     * the IDEA's fork-join pool under the read action of the calling thread -
+     * each of them is fully iterated then, so use it only for independent
+     * sources whose resolution is expensive, like usages or implementations
+     */
+    public <T> It<T> cnc(Iterable<S<Iterable<T>>> sources)
+    {
+        L<S<Iterable<T>>> srcs = L(sources);
+        int maxForks = Runtime.getRuntime().availableProcessors();
+        int slots = !parallel || srcs.size() < 2 ? 0 : reserveForks(srcs.size(), maxForks);
+        if (slots == 0) {
+            return It(srcs).fap(src -> src.get());
+        }
+        AtomicReferenceArray<L<T>> results = new AtomicReferenceArray<>(srcs.size());
+        Long deadline = Interrupt.getDeadline();
+        SearchCtx owner = budgetOwner.get();
+        try {
+            JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+                Tls.range(0, srcs.size()).arr(),
+                ProgressManager.getInstance().getProgressIndicator(),
+                true, true, i -> {
+                    results.set(i, Interrupt.withDeadlineAt(deadline, () ->
+                        withBudgetOf(owner, () -> L(srcs.get(i).get()))));
+                    return true;
+                }
+            );
+        } finally {
+            forksRunning.addAndGet(-slots);
+        }
+        // workers fail fast if write action is pending, the rest is resolved in this thread
+        return Tls.range(0, srcs.size())
+            .fap(i -> opt(results.get(i))
+                .uni(types -> types, () -> srcs.get(i).get()));
+    }
+
+    @SafeVarargs
+    final public <T> It<T> cnc(S<Iterable<T>>... sources)
+    {
+        return cnc(list(sources));
+    }
+
+    /**
+     * return types of the function called in this context, taken from another call
+     * with same shaped args if that one was resolved at same or lower depth
+     *
+     * shape of args is only computed on repeated calls of the function, so the
+     * first call is never stored, the second one is stored, the rest may share it
+     */
+    public It<DeepType> findFuncReturns(Function func, IExprCtx ctx, F<IExprCtx, It<DeepType>> resolve)
+    {
+        if (fixpointRecursion) {
+            Fixpoint running = fixpoints.get().get(func);
+            // a call in args passed to the function is not a recursion, though it's in same thread
+            boolean isRecursion = running != null && Tls.cast(ExprCtx.class, ctx)
+                .any(exprCtx -> exprCtx.hasAncestor(running.root));
+            if (isRecursion) {
+                // recursive call - take the approximation from the previous iteration
+                running.reentered = true;
+                return It(running.approx);
+            }
+        }
+        // fixpoint iterates the whole result, so it is only solved when someone takes the types
+        Iterable<DeepType> solved = () -> solveFixpoint(func, ctx, resolve).iterator();
+        S<It<DeepType>> getTypes = fixpointRecursion
+            ? () -> It(new MemIt<>(solved))
+            : () -> resolve.apply(ctx);
+        boolean calledBefore = shareFuncSummaries && !calledFuncs.add(func);
+        Opt<L<Object>> keyOpt = !calledBefore ? non() : Tls.cast(ExprCtx.class, ctx)
+            .fop(exprCtx -> exprCtx.funcCtx().getShapeKey())
+            .map(shapeKey -> list(func, shapeKey));
+        if (!keyOpt.has()) {
+            return getTypes.get();
+        }
+        L<Object> key = keyOpt.unw();
+        int depth = ctx.getDepth();
+        T3<Integer, MemIt<DeepType>, IExprCtx> known = funcSummaries.get(key);
+        if (known != null && known.a <= depth) {
+            funcSummaryHits.incrementAndGet();
+            // like a hit in findExprType(), reader gets deps and incompleteness of the resolution
+            Opt<ExprCtx> reader = Tls.cast(ExprCtx.class, ctx);
+            Tls.cast(ExprCtx.class, known.c).thn(producer -> reader.thn(producer::addCacheConsumer));
+            return It(known.b).thn(cnt -> {
+                if (!known.b.isComplete()) {
+                    reader.thn(ExprCtx::markIncomplete);
+                }
+            });
+        }
+        funcSummaryMisses.incrementAndGet();
+        MemIt<DeepType> mit = new MemIt<>(getTypes.get());
+        Tls.cast(ExprCtx.class, ctx).thn(producer -> mit.whenCut(producer::markIncomplete));
+        funcSummaries.merge(key, T3(depth, mit, ctx), (was, now) -> was.a <= now.a ? was : now);
+        return It(mit);
+    }
+
+    /** shape of the types, or their key names if there are too many types to fingerprint */
+    private static Object getFixpointShape(L<DeepType> types)
+    {
+        return TypeShape.of(list(new Mt(types)))
+            .map(shape -> (Object)shape)
+            .def(It(types).fap(t -> t.getKeys()).fap(k -> k.keyType.getNames()).unq().arr());
+    }
+
+    /** drop results of expressions resolved in sub-contexts of the context from search cache */
+    private void forgetResolvedUnder(IExprCtx root)
+    {
+        Predicate<IExprCtx> isUnder = ctx -> Tls.cast(ExprCtx.class, ctx)
+            .any(exprCtx -> exprCtx.hasAncestor(root));
+        ctxToExprToResult.values().removeIf(cached -> isUnder.test(cached.a));
+        funcSummaries.values().removeIf(known -> isUnder.test(known.c));
+    }
+
+    /**
+     * resolve function so that its recursive calls in this thread got the result of
+     * the previous iteration instead of empty one, repeating while the shape changes
+     *
+     * if function entered itself, whatever the first iteration cached was resolved
+     * against empty approximation, so it is forgotten, and next iterations are not
+     * cached at all - result is marked incomplete if cap was reached
+     */
+    private It<DeepType> solveFixpoint(Function func, IExprCtx ctx, F<IExprCtx, It<DeepType>> resolve)
+    {
+        Map<Function, Fixpoint> running = fixpoints.get();
+        Fixpoint fix = new Fixpoint();
+        Fixpoint outer = running.put(func, fix);
+        try {
+            Object lastShape = null;
+            IExprCtx iterCtx = ctx;
+            for (int i = 0; i < MAX_FIXPOINT_ITERATIONS; ++i) {
+                fix.root = iterCtx;
+                fix.reentered = false;
+                L<DeepType> types = resolve.apply(iterCtx).arr();
+                fix.approx = types;
+                if (!fix.reentered) {
+                    return It(types);
+                }
+                if (i == 0) {
+                    forgetResolvedUnder(iterCtx);
+                }
+                Object shape = getFixpointShape(types);
+                if (shape.equals(lastShape)) {
+                    return It(types);
+                }
+                lastShape = shape;
+                iterCtx = Tls.cast(ExprCtx.class, ctx)
+                    .map(exprCtx -> (IExprCtx)exprCtx.subCtxUncached())
+                    .def(ctx);
+            }
+            Tls.cast(ExprCtx.class, ctx).thn(ExprCtx::markIncomplete);
+            return It(fix.approx);
+        } finally {
+            if (outer != null) {
+                running.put(func, outer);
+            } else {
+                running.remove(func);
+            }
+        }
+    }
+
+    public int getCallStringLimit()
+    {
+        return callStringLimit;
+    }
+
+    /** how many expressions had their array types merged, see widen() */
+    public int getUnionsWidened()
+    {
+        return unionsWidened.get();
+    }
+
+    /** share of expressions taken from the cache, from 0 to 1 */
+    public double getCacheHitRate()
+    {
+        int lookups = cacheLookups.get();
+        return lookups > 0 ? cacheHits.get() * 1.0 / lookups : 0;
+    }
+
+    public int getFuncSummaryHits()
+    {
+        return funcSummaryHits.get();
+    }
+
+    public int getFuncSummaryMisses()
+    {
+        return funcSummaryMisses.get();
+    }
+
+    FuncCtx.Sig internFuncSig(FuncCtx.Sig sig)
+    {
+        FuncCtx.Sig interned = funcSigs.putIfAbsent(sig, sig);
+        return interned != null ? interned : sig;
+    }
+
     public int getExpressionsResolved()
     {
-        return this.expressionsResolved;
+        return this.expressionsResolved.get();
+    }
+
+    public long getMemoryUsed()
+    {
+        return this.memoryUsed.get();
     }
 }
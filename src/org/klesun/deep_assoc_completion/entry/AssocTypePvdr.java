@@ -14,6 +14,7 @@ import org.klesun.deep_assoc_completion.contexts.ExprCtx;
 import org.klesun.deep_assoc_completion.contexts.FuncCtx;
 import org.klesun.deep_assoc_completion.helpers.Mt;
 import org.klesun.deep_assoc_completion.contexts.SearchCtx;
+import org.klesun.lang.Interrupt;
 import org.klesun.lang.L;
 import org.klesun.lang.Lang;
 import org.klesun.lang.Tls;
@@ -65,20 +66,22 @@ public class AssocTypePvdr extends Lang implements PhpTypeProvider3
         // my recursive formatting in STDOUT, so always setDebug(false)
         SearchCtx search = new SearchCtx(psi.getProject())
             .setDepth(settings.bgTypePvdrDepthLimit)
-            .setTimeout(settings.bgTypePvdrTimeout / 1000)
+            .setTimeout(settings.bgTypePvdrTimeout / 1000.0)
             .setDebug(false);
         FuncCtx funcCtx = new FuncCtx(search);
 
         @Nullable PhpType result = null;
         try {
-            result = Tls.cast(PhpExpression.class, psi)
+            // iterators stop on deadline too, not just resolution of new expressions
+            result = Interrupt.withDeadline(settings.bgTypePvdrTimeout / 1000.0, () -> Tls.cast(PhpExpression.class, psi)
                 .fap(exp -> (new ExprCtx(funcCtx, exp, 0)).findExprType(exp))
                 .map(t -> t.briefType)
-                .wap(tit -> Mt.joinIdeaTypes(tit));
+                .wap(tit -> Mt.joinIdeaTypes(tit)));
         } catch (Throwable exc) {
             // throwing some exceptions further would cause class to become undefined
+            // ProcessCanceledException must get through though, so that IDEA restarted the read action
             L<Class> allowedExceptions = list(ControlFlowException.class);
-            if (allowedExceptions.any(excCls -> exc.getClass().isAssignableFrom(excCls))) {
+            if (allowedExceptions.any(excCls -> excCls.isAssignableFrom(exc.getClass()))) {
                 throw exc;
             } else {
                 String msg = "Unexpected exception in deep-assoc-completion plugin - " + exc.getClass() + " while resolving " + psi.getText() + " " + psi.getClass() + " " + opt(psi.getContainingFile()).map(f -> f.getName()).def("(no file)") + " :" + psi.getTextOffset();
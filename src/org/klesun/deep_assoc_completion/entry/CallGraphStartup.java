@@ -0,0 +1,19 @@
+package org.klesun.deep_assoc_completion.entry;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import org.jetbrains.annotations.NotNull;
+import org.klesun.deep_assoc_completion.helpers.CallGraph;
+
+/**
+ * starts building the call graph in background as soon as project
+ * is opened, so that it is ready by the time user calls completion
+ */
+public class CallGraphStartup implements StartupActivity
+{
+    @Override
+    public void runActivity(@NotNull Project project)
+    {
+        CallGraph.inst(project).thn(CallGraph::buildInBackground);
+    }
+}
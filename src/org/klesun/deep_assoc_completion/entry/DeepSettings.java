@@ -22,9 +22,16 @@ public class DeepSettings implements PersistentStateComponent<DeepSettings> {
     public Integer explicitDepthLimit = 55;
     public Integer implicitDepthLimit = 30;
     public Integer totalExpressionLimit = 7500;
+    public Integer searchMemoryLimitMb = 512;
     public Integer usageBasedCompletionDepthLimit = 3;
     public Boolean removeUnusedImportsOnSaveEnabled = false;
     public Boolean passArgsToImplementations = false;
+    public Boolean projectCacheEnabled = true;
+    public Boolean parallelResolution = false;
+    public Integer deepeningTimeLimitMs = 3000;
+    public Integer callStringLimit = 0; // 0 - whole call stack
+    public Boolean fixpointRecursion = false;
+    public Integer unionWidenLimit = 100; // 0 - do not widen
 
     public static DeepSettings inst(Project project) {
         return Opt.fst(
@@ -25,6 +25,13 @@ public class DeepSettingsForm implements Configurable
     private JFormattedTextField totalExpressionLimit;
     private JFormattedTextField usageBasedCompletionDepthLimit;
     private JCheckBox passArgsToImplementations;
+    private JCheckBox projectCacheEnabled;
+    private JFormattedTextField searchMemoryLimitMb;
+    private JCheckBox parallelResolution;
+    private JFormattedTextField deepeningTimeLimitMs;
+    private JFormattedTextField callStringLimit;
+    private JCheckBox fixpointRecursion;
+    private JFormattedTextField unionWidenLimit;
 
     @Nls
     @Override
@@ -51,10 +58,17 @@ public class DeepSettingsForm implements Configurable
         }
         return !getSettings().removeUnusedImportsOnSaveEnabled == removeUnusedImportsOnSaveEnabled.isSelected()
             || !getSettings().passArgsToImplementations == passArgsToImplementations.isSelected()
+            || !getSettings().projectCacheEnabled == projectCacheEnabled.isSelected()
+            || !getSettings().parallelResolution == parallelResolution.isSelected()
+            || !getSettings().fixpointRecursion == fixpointRecursion.isSelected()
             || !getSettings().explicitDepthLimit.toString().equals(explicitDepthLimit.getText())
             || !getSettings().implicitDepthLimit.toString().equals(implicitDepthLimit.getText())
             || !getSettings().totalExpressionLimit.toString().equals(totalExpressionLimit.getText())
             || !getSettings().usageBasedCompletionDepthLimit.toString().equals(usageBasedCompletionDepthLimit.getText())
+            || !getSettings().searchMemoryLimitMb.toString().equals(searchMemoryLimitMb.getText())
+            || !getSettings().deepeningTimeLimitMs.toString().equals(deepeningTimeLimitMs.getText())
+            || !getSettings().callStringLimit.toString().equals(callStringLimit.getText())
+            || !getSettings().unionWidenLimit.toString().equals(unionWidenLimit.getText())
             ;
     }
 
@@ -78,20 +92,34 @@ public class DeepSettingsForm implements Configurable
     public void apply() throws ConfigurationException {
         getSettings().removeUnusedImportsOnSaveEnabled = removeUnusedImportsOnSaveEnabled.isSelected();
         getSettings().passArgsToImplementations = passArgsToImplementations.isSelected();
+        getSettings().projectCacheEnabled = projectCacheEnabled.isSelected();
+        getSettings().parallelResolution = parallelResolution.isSelected();
+        getSettings().fixpointRecursion = fixpointRecursion.isSelected();
         getSettings().explicitDepthLimit = validateInt(explicitDepthLimit, 0, 100);
         getSettings().implicitDepthLimit = validateInt(implicitDepthLimit, 0, 100);
         getSettings().totalExpressionLimit = validateInt(totalExpressionLimit, 0, 1000000);
         getSettings().usageBasedCompletionDepthLimit = validateInt(usageBasedCompletionDepthLimit, 0, 100);
+        getSettings().searchMemoryLimitMb = validateInt(searchMemoryLimitMb, 1, 100000);
+        getSettings().deepeningTimeLimitMs = validateInt(deepeningTimeLimitMs, 0, 600000);
+        getSettings().callStringLimit = validateInt(callStringLimit, 0, 100);
+        getSettings().unionWidenLimit = validateInt(unionWidenLimit, 0, 100000);
     }
 
     @Override
     public void reset() {
         removeUnusedImportsOnSaveEnabled.setSelected(getSettings().removeUnusedImportsOnSaveEnabled);
         passArgsToImplementations.setSelected(getSettings().passArgsToImplementations);
+        projectCacheEnabled.setSelected(getSettings().projectCacheEnabled);
+        parallelResolution.setSelected(getSettings().parallelResolution);
+        fixpointRecursion.setSelected(getSettings().fixpointRecursion);
         explicitDepthLimit.setText(getSettings().explicitDepthLimit.toString());
         implicitDepthLimit.setText(getSettings().implicitDepthLimit.toString());
         totalExpressionLimit.setText(getSettings().totalExpressionLimit.toString());
         usageBasedCompletionDepthLimit.setText(getSettings().usageBasedCompletionDepthLimit.toString());
+        searchMemoryLimitMb.setText(getSettings().searchMemoryLimitMb.toString());
+        deepeningTimeLimitMs.setText(getSettings().deepeningTimeLimitMs.toString());
+        callStringLimit.setText(getSettings().callStringLimit.toString());
+        unionWidenLimit.setText(getSettings().unionWidenLimit.toString());
     }
 
     public void disposeUIResources() {
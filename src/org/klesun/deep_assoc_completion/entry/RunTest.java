@@ -57,47 +57,51 @@ public class RunTest extends AnAction
         return meths.has() ? opt(meths) : opt(null);
     }
 
-    private static IExprCtx makeNewExprCtx(PsiElement psi)
+    private static IExprCtx makeNewExprCtx(PsiElement psi, Logger logger)
     {
         SearchCtx search = new SearchCtx(psi.getProject())
-            .setDepth(AssocKeyPvdr.getMaxDepth(false, psi.getProject()));
+            .setDepth(AssocKeyPvdr.getMaxDepth(false, psi.getProject()))
+            // same as in key completion, so that cases covered these modes too
+            .enableFuncSummaries()
+            .enableWidening()
+            .countWorkIn(logger.getWorkCounter());
         FuncCtx funcCtx = new FuncCtx(search);
         ExprCtx exprCtx = new ExprCtx(funcCtx, psi, 0);
         return exprCtx;
     }
 
-    private static It<DeepType> getReturnType(Method func)
+    private static It<DeepType> getReturnType(Method func, Logger logger)
     {
         return ClosRes.findFunctionReturns(func)
             .map(ret -> ret.getArgument())
             .fop(toCast(PhpExpression.class))
-            .fap(retVal -> makeNewExprCtx(retVal).findExprType(retVal));
+            .fap(retVal -> makeNewExprCtx(retVal, logger).findExprType(retVal));
     }
 
     private static It<T3<CaseContext, Key, Key>> parseReturnedTestCase(Method func, Logger logger)
     {
-        return getReturnType(func)
+        return getReturnType(func, logger)
             .fap(t -> Mt.getKeySt(t, null))
             .fap((rett, i) -> {
                 CaseContext ctx = new CaseContext(logger);
                 ctx.dataProviderName = func.getName();
                 ctx.testNumber = i;
-                return rett.keys.flt(k -> k.keyType.getNames().any(n -> n.equals("0")))
-                    .fap(actual -> rett.keys.flt(k -> k.keyType.getNames().any(n -> n.equals("1")))
+                return rett.getKeys().flt(k -> k.keyType.getNames().any(n -> n.equals("0")))
+                    .fap(actual -> rett.getKeys().flt(k -> k.keyType.getNames().any(n -> n.equals("1")))
                         .map(expected -> T3(ctx, actual, expected)));
             });
     }
 
     private static It<T3<CaseContext, Mt, Mt>> parseArgTestCase(Method func, Logger logger)
     {
-        It<DeepType> retit = getReturnType(func);
+        It<DeepType> retit = getReturnType(func, logger);
         L<String> funcArgNames = It(func.getParameters())
             .map(par -> par.getName()).arr();
         return retit.fap(rett -> {
-            It<String> testArgNames = rett.keys.fap(k -> k.keyType.getNames()).unq();
+            It<String> testArgNames = rett.getKeys().fap(k -> k.keyType.getNames()).unq();
             return testArgNames.map((argName, i) -> {
                 int argOrder = funcArgNames.indexOf(argName);
-                IExprCtx exprCtx = makeNewExprCtx(func);
+                IExprCtx exprCtx = makeNewExprCtx(func, logger);
                 Mt actual = new UsageBasedTypeResolver(exprCtx, 10)
                     .findArgTypeFromUsage(func, argOrder, exprCtx.subCtxEmpty())
                     .wap(Mt::new);
@@ -114,6 +118,8 @@ public class RunTest extends AnAction
     public void actionPerformed(AnActionEvent e)
     {
         Logger logger = new Logger();
+        // key names are checked on types as the completion popup gets them
+        SearchCtx popupSearch = new SearchCtx(e.getProject()).enableShapeMerging();
         logger.scheduleBg(() -> {
             It<Error> exactKeyErrors = opt(e.getData(LangDataKeys.PSI_FILE))
                 .fop(file -> findExactKeysTestDataPvdrFuncs(file))
@@ -122,8 +128,8 @@ public class RunTest extends AnAction
                 .fap(tu -> tu.nme((ctx, actual, expected) -> {
                     L<String> expectedKeys = new Mt(expected.getValueTypes())
                         .getEl().getStringValues().arr();
-                    It<String> actualKeys = actual.getValueTypes()
-                        .fap(t -> t.keys).fap(k -> k.keyType.getNames());
+                    It<String> actualKeys = popupSearch.unqShapes(actual.getValueTypes())
+                        .fap(t -> t.getKeys()).fap(k -> k.keyType.getNames());
                     if (expectedKeys.size() == 0 && !expected.definition.getText().equals("[]")) {
                         logger.logErrShort(non());
                         return list(new Error(ctx, "Expected keys are empty"));
@@ -0,0 +1,22 @@
+package org.klesun.deep_assoc_completion.entry;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.ui.Messages;
+import org.klesun.deep_assoc_completion.helpers.CallGraph;
+
+import static org.klesun.lang.Lang.*;
+
+public class ShowCallGraphStats extends AnAction
+{
+    @Override
+    public void actionPerformed(AnActionEvent e)
+    {
+        opt(e.getProject()).thn(project -> {
+            String stats = CallGraph.inst(project)
+                .map(graph -> graph.getStats())
+                .def("Call graph service is not available");
+            Messages.showInfoMessage(project, stats, "deep-assoc-completion Call Graph");
+        });
+    }
+}
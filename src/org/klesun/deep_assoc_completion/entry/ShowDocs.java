@@ -54,7 +54,7 @@ public class ShowDocs extends AnAction
                         .map(func -> new Build(par, PhpType.ARRAY)
                             .keys(new UsageBasedTypeResolver(exprCtx.subCtxEmpty())
                                 .findArgTypeFromUsage(func, order, exprCtx)
-                                .fap(t -> t.keys)
+                                .fap(t -> t.getKeys())
                                 .fap(k -> k.keyType.getNames())
                                 .unq()
                                 .map(n -> new Key(n, psi)))
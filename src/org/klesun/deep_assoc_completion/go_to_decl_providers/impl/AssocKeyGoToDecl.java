@@ -44,7 +44,7 @@ public class AssocKeyGoToDecl extends Lang
                     ExprCtx exprCtx = new ExprCtx(funcCtx, literal, 0);
                     String key = exprCtx.findExprType(literal).wap(Mt::getStringValueSt);
                     return exprCtx.findExprType(srcExpr)
-                        .fap(arrt -> arrt.keys)
+                        .fap(arrt -> arrt.getKeys())
                         .fap(k -> k.keyType.getTypes())
                         .flt(t -> Objects.equals(t.stringValue, key))
                         .map(t -> t.definition)
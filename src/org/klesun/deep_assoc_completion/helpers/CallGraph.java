@@ -0,0 +1,259 @@
+package org.klesun.deep_assoc_completion.helpers;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.*;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jetbrains.php.lang.PhpFileType;
+import com.jetbrains.php.lang.psi.elements.FunctionReference;
+import org.jetbrains.annotations.NotNull;
+import org.klesun.lang.*;
+
+import java.util.*;
+
+/**
+ * project-wide reverse call graph: function or method name -> calls to it,
+ * so that argument inference could visit callers without scanning files
+ *
+ * only names and offsets are kept, not the PSI, since holding PSI of every
+ * project file would keep all their trees in memory - a changed file is
+ * re-indexed in background after the write action
+ */
+public class CallGraph extends Lang implements Disposable
+{
+    final private Project project;
+    // callee name -> start offsets of calls to it in the file, as primitive
+    // arrays, since there are as many of them as calls in the whole project
+    final private Map<VirtualFile, Map<String, int[]>> fileToCalls = new HashMap<>();
+    final private Map<String, Set<VirtualFile>> nameToFiles = new HashMap<>();
+    final private Set<VirtualFile> dirtyFiles = new HashSet<>();
+    private boolean reindexScheduled = false;
+    private volatile boolean isBuilt = false;
+    private volatile long buildMs = -1;
+
+    public CallGraph(Project project)
+    {
+        this.project = project;
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiTreeChangeAdapter() {
+            public void childAdded(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childRemoved(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childReplaced(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childMoved(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void childrenChanged(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+            public void propertyChanged(@NotNull PsiTreeChangeEvent event) { onChange(event); }
+        }, this);
+    }
+
+    public static Opt<CallGraph> inst(Project project)
+    {
+        return opt(ServiceManager.getService(project, CallGraph.class));
+    }
+
+    private static Map<String, int[]> indexFile(PsiFile file)
+    {
+        Map<String, L<Integer>> nameToOffsets = new HashMap<>();
+        PsiTreeUtil.processElements(file, psi -> {
+            Tls.cast(FunctionReference.class, psi)
+                .thn(call -> opt(call.getName()).thn(name -> nameToOffsets
+                    .computeIfAbsent(name, k -> list())
+                    .add(call.getTextRange().getStartOffset())));
+            return true;
+        });
+        Map<String, int[]> compact = new HashMap<>(nameToOffsets.size());
+        nameToOffsets.forEach((name, offsets) -> compact.put(name,
+            offsets.stream().mapToInt(Integer::intValue).toArray()));
+        return compact;
+    }
+
+    private synchronized void removeFile(VirtualFile vf)
+    {
+        opt(fileToCalls.remove(vf)).thn(calls -> calls.keySet().forEach(name ->
+            opt(nameToFiles.get(name)).thn(files -> {
+                files.remove(vf);
+                if (files.isEmpty()) {
+                    nameToFiles.remove(name);
+                }
+            })));
+    }
+
+    private synchronized void putFile(VirtualFile vf, Map<String, int[]> calls)
+    {
+        removeFile(vf);
+        fileToCalls.put(vf, calls);
+        calls.keySet().forEach(name -> nameToFiles
+            .computeIfAbsent(name, k -> new HashSet<>())
+            .add(vf));
+    }
+
+    private synchronized boolean isIndexed(VirtualFile vf)
+    {
+        return fileToCalls.containsKey(vf) && !dirtyFiles.contains(vf);
+    }
+
+    private void indexFile(VirtualFile vf)
+    {
+        Opt<PsiFile> file = opt(vf)
+            .flt(VirtualFile::isValid)
+            .fop(valid -> opt(PsiManager.getInstance(project).findFile(valid)));
+        if (file.has()) {
+            putFile(vf, indexFile(file.unw()));
+        } else {
+            removeFile(vf);
+        }
+    }
+
+    /**
+     * should be called in read action - a file stays dirty till it is
+     * indexed, so if a write action cancels it, the rest is done on restart
+     */
+    private void reindexDirty()
+    {
+        while (true) {
+            L<VirtualFile> dirty;
+            synchronized (this) {
+                if (dirtyFiles.isEmpty()) {
+                    reindexScheduled = false;
+                    return;
+                }
+                dirty = L(dirtyFiles);
+            }
+            dirty.fch(vf -> {
+                ProgressManager.checkCanceled();
+                indexFile(vf);
+                synchronized (this) {
+                    dirtyFiles.remove(vf);
+                }
+            });
+        }
+    }
+
+    private void build()
+    {
+        long startTime = System.nanoTime();
+        L<VirtualFile> files = It(FileTypeIndex.getFiles(PhpFileType.INSTANCE, GlobalSearchScope.projectScope(project)))
+            .flt(vf -> !isIndexed(vf))
+            .arr();
+        boolean finished = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+            files, ProgressManager.getInstance().getProgressIndicator(),
+            true, vf -> {
+                indexFile(vf);
+                return true;
+            }
+        );
+        if (finished) {
+            buildMs = (System.nanoTime() - startTime) / 1000000;
+            isBuilt = true;
+        } else {
+            // aborted to let a write action through - non-blocking read action
+            // only restarts on a cancel, so it is scheduled again
+            buildInBackground();
+        }
+    }
+
+    /**
+     * index all PHP files of the project on all cores once it is indexed by IDEA, if
+     * a write action interrupts it, it is restarted skipping already indexed files
+     */
+    public void buildInBackground()
+    {
+        ReadAction.nonBlocking(this::build)
+            .inSmartMode(project)
+            .expireWhen(project::isDisposed)
+            .submit(AppExecutorUtil.getAppExecutorService());
+    }
+
+    private static Opt<FunctionReference> findCallAt(PsiFile file, int offset, String name)
+    {
+        // `$a->b()->c()` - both calls start at same offset
+        for (PsiElement psi = file.findElementAt(offset);
+             psi != null && psi.getTextRange().getStartOffset() == offset;
+             psi = psi.getParent()
+        ) {
+            Opt<FunctionReference> call = Tls.cast(FunctionReference.class, psi)
+                .flt(ref -> name.equals(ref.getName()));
+            if (call.has()) {
+                return call;
+            }
+        }
+        return non();
+    }
+
+    /**
+     * calls to functions/methods with such name in the project, caller should filter them
+     * by resolve() if needed - empty till the graph is built, should be called in read action
+     *
+     * files changed since the last re-index may miss some calls, offsets are checked against PSI
+     */
+    public It<FunctionReference> getCalls(String name)
+    {
+        if (!isBuilt) {
+            return It.non();
+        }
+        L<T2<VirtualFile, int[]>> fileOffsets;
+        synchronized (this) {
+            fileOffsets = opt(nameToFiles.get(name)).fap(files -> files)
+                .fop(vf -> opt(fileToCalls.get(vf))
+                    .fop(calls -> opt(calls.get(name)))
+                    .map(offsets -> T2(vf, offsets)))
+                .arr();
+        }
+        return fileOffsets.fap(tup -> opt(tup.a)
+            .flt(VirtualFile::isValid)
+            .fop(vf -> opt(PsiManager.getInstance(project).findFile(vf)))
+            .fap(file -> Tls.range(0, tup.b.length)
+                .fop(i -> findCallAt(file, tup.b[i], name))));
+    }
+
+    public synchronized String getStats()
+    {
+        int callCount = It(fileToCalls.values())
+            .fap(calls -> calls.values())
+            .rdc((sum, offsets) -> sum + offsets.length, 0);
+        return (isBuilt ? "Built in " + buildMs + " ms" : "Not built yet") + "\n" +
+            "Files: " + fileToCalls.size() + "\n" +
+            "Callee names: " + nameToFiles.size() + "\n" +
+            "Call sites: " + callCount + "\n" +
+            "Changed files to re-index: " + dirtyFiles.size();
+    }
+
+    private void markDirty(VirtualFile vf)
+    {
+        synchronized (this) {
+            dirtyFiles.add(vf);
+            if (reindexScheduled) {
+                return;
+            }
+            reindexScheduled = true;
+        }
+        // changes come in write action, so it starts after it is over
+        ReadAction.nonBlocking(this::reindexDirty)
+            .inSmartMode(project)
+            .expireWhen(project::isDisposed)
+            .submit(AppExecutorUtil.getAppExecutorService());
+    }
+
+    private void onChange(PsiTreeChangeEvent event)
+    {
+        opt(event.getFile())
+            .elf(() -> Tls.cast(PsiFile.class, event.getChild()))
+            .elf(() -> Tls.cast(PsiFile.class, event.getOldChild()))
+            .fop(file -> opt(file.getVirtualFile()))
+            .thn(this::markDirty);
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        fileToCalls.clear();
+        nameToFiles.clear();
+        dirtyFiles.clear();
+    }
+}
@@ -0,0 +1,90 @@
+package org.klesun.deep_assoc_completion.helpers;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.jetbrains.php.lang.psi.elements.*;
+import com.jetbrains.php.lang.psi.elements.impl.PhpReturnImpl;
+import org.klesun.lang.*;
+
+import java.util.HashMap;
+
+/**
+ * what resolvers look for in a function body, collected in a single
+ * walk and remembered till the file changes: references of each
+ * variable, array accesses on it, returns and yields
+ *
+ * nested closures are not included - they have a summary of their own
+ */
+public class FuncSummary extends Lang
+{
+    // variables and parameters, in order of appearance
+    final private Dict<L<PsiElement>> nameToRefs = new Dict<>(new HashMap<>());
+    // `$var['key']` accesses by the name of the variable
+    final private Dict<L<ArrayAccessExpression>> nameToAccesses = new Dict<>(new HashMap<>());
+    // summary is shared by all searches, so these are only given out as iterators
+    final private L<PhpReturnImpl> returns = list();
+    final private L<PhpYield> yields = list();
+
+    private static <T> void add(Dict<L<T>> nameToPsis, String name, T psi)
+    {
+        if (!nameToPsis.containsKey(name)) {
+            nameToPsis.put(name, list());
+        }
+        nameToPsis.get(name).add(psi);
+    }
+
+    private void collect(PsiElement parent)
+    {
+        for (PsiElement child: parent.getChildren()) {
+            // anonymous functions
+            if (child instanceof Function) continue;
+
+            Tls.cast(Variable.class, child)
+                .thn(vari -> opt(vari.getName())
+                    .thn(name -> add(nameToRefs, name, vari)));
+            Tls.cast(Parameter.class, child)
+                .thn(param -> add(nameToRefs, param.getName(), param));
+            Tls.cast(ArrayAccessExpression.class, child)
+                .thn(acc -> opt(acc.getValue())
+                    .fop(toCast(Variable.class))
+                    .fop(vari -> opt(vari.getName()))
+                    .thn(name -> add(nameToAccesses, name, acc)));
+            Tls.cast(PhpReturnImpl.class, child)
+                .thn(returns::add);
+            Tls.cast(PhpYield.class, child)
+                .thn(yields::add);
+
+            collect(child);
+        }
+    }
+
+    public static FuncSummary of(Function func)
+    {
+        return CachedValuesManager.getCachedValue(func, () -> {
+            FuncSummary summary = new FuncSummary();
+            summary.collect(func);
+            return CachedValueProvider.Result.create(summary, func.getContainingFile());
+        });
+    }
+
+    public It<PsiElement> getRefs(String varName)
+    {
+        return opt(nameToRefs.get(varName)).fap(refs -> refs);
+    }
+
+    public It<ArrayAccessExpression> getAccesses(String varName)
+    {
+        return opt(nameToAccesses.get(varName)).fap(accs -> accs);
+    }
+
+    public It<PhpReturnImpl> getReturns()
+    {
+        return returns.itr();
+    }
+
+    public It<PhpYield> getYields()
+    {
+        return yields.itr();
+    }
+}
@@ -11,7 +11,9 @@ import org.klesun.lang.L;
 import org.klesun.lang.MemIt;
 import org.klesun.lang.Tls;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Objects;
 import java.util.Set;
 
@@ -35,7 +37,9 @@ public class Mt
     private REASON reason;
     final public MemIt<DeepType> types;
 
-    private boolean isGettingKey = false;
+    // per thread, since same Mt may be shared by parallel resolution branches
+    final private static ThreadLocal<Set<Mt>> gettingKeyOf = ThreadLocal
+        .withInitial(() -> Collections.newSetFromMap(new IdentityHashMap<>()));
 
     public Mt(Iterable<DeepType> types, REASON reason)
     {
@@ -110,18 +114,16 @@ public class Mt
 
     public static It<DeepType> getDynaPropSt(DeepType type, String keyName)
     {
-        return getPropOfName(type.props.vls(), keyName);
+        return getPropOfName(type.getProps(), keyName);
     }
 
     public static It<DeepType> getKeySt(DeepType type, String keyName)
     {
+        It<Key> keys = keyName == null
+            ? It(type.getKeys())
+            : type.getKeysOfName(keyName);
         return It.cnc(
-            type.keys
-                .flt(k -> keyName == null || k.keyType.getTypes()
-                    .any(kt -> keyName.equals(kt.stringValue)
-                        || kt.stringValue == null
-                        && (!kt.isNumber() || Tls.isNum(keyName))))
-                .fap(k -> k.getValueTypes()),
+            keys.fap(k -> k.getValueTypes()),
             opt(type.briefType.elementType().filterUnknown().filterMixed())
                 .flt(it -> !it.isEmpty()).itr()
                 .map(it -> new DeepType(type.definition, it, false))
@@ -130,15 +132,16 @@ public class Mt
 
     public Mt getKey(String keyName)
     {
-        if (isGettingKey) { // see issue #45
+        Set<Mt> gettingKey = gettingKeyOf.get();
+        if (!gettingKey.add(this)) { // see issue #45
             return Mt.CIRCULAR_REFERENCE;
         }
-        isGettingKey = true;
-
-        It<DeepType> keyTsIt = types.fap(t -> getKeySt(t, keyName));
-
-        isGettingKey = false;
-        return new Mt(keyTsIt);
+        try {
+            It<DeepType> keyTsIt = types.fap(t -> getKeySt(t, keyName));
+            return new Mt(keyTsIt);
+        } finally {
+            gettingKey.remove(this);
+        }
     }
 
     public Mt getKey(KeyType kt)
@@ -156,13 +159,12 @@ public class Mt
 
     public It<String> getKeyNames()
     {
-        return types.fap(t -> It(t.keys))
-            .fap(k -> k.keyType.getNames()).unq();
+        return types.fap(t -> t.getKeyNames()).unq();
     }
 
     public It<Key> getAssignedProps()
     {
-        return types.fap(t -> t.props.vls());
+        return types.fap(t -> t.getProps());
     }
 
     public static PhpType joinIdeaTypes(Iterable<PhpType> ideaTypes)
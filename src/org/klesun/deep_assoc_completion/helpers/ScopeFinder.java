@@ -1,14 +1,17 @@
 package org.klesun.deep_assoc_completion.helpers;
 
+import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.jetbrains.php.lang.psi.elements.*;
 import com.jetbrains.php.lang.psi.elements.impl.*;
-import org.klesun.lang.L;
-import org.klesun.lang.Lang;
-import org.klesun.lang.Opt;
-import org.klesun.lang.Tls;
+import org.klesun.lang.*;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Objects;
 
 /**
@@ -17,28 +20,122 @@ import java.util.Objects;
  */
 public class ScopeFinder extends Lang
 {
-    private static Opt<PsiElement> getParentScope(PsiElement psi)
+    /**
+     * GroupStatement-s and else-if-s of a file as nested text ranges in
+     * tree pre-order, so that scopes of a psi are found by a binary search
+     * on offset followed by a walk up the tree, not by walking PSI parents
+     */
+    private static class ScopeTree
     {
-        PsiElement next = psi.getParent();
-        while (next != null) {
-            Opt<PsiElement> scopeMb = Tls.cast(GroupStatement.class, next).map(v -> v);
-            if (scopeMb.has()) {
-                return scopeMb;
+        static class Node
+        {
+            final PsiElement psi;
+            final int start;
+            final int end;
+            final Node parent;
+            // GroupStatement, otherwise `elseif` or `else if`
+            final boolean isGroup;
+            // there is a loop between it and the function it belongs to
+            final boolean isInALoop;
+
+            Node(PsiElement psi, Node parent, boolean isInALoop)
+            {
+                this.psi = psi;
+                this.start = psi.getTextRange().getStartOffset();
+                this.end = psi.getTextRange().getEndOffset();
+                this.parent = parent;
+                this.isGroup = psi instanceof GroupStatement;
+                this.isInALoop = isInALoop;
             }
-            next = next.getParent();
         }
-        return new Opt(null);
+
+        final private L<Node> nodes = list();
+        private int[] starts = new int[0];
+
+        private static boolean isLoop(PsiElement psi)
+        {
+            return psi instanceof For
+                || psi instanceof While
+                || psi instanceof ForeachImpl
+                || psi instanceof DoWhile;
+        }
+
+        private static boolean isElseIf(PsiElement psi)
+        {
+            return psi instanceof ElseIfImpl
+                || psi instanceof IfImpl && psi.getParent() instanceof ElseImpl;
+        }
+
+        private void collect(PsiElement psi, Node parent, boolean isInALoop)
+        {
+            for (PsiElement child: psi.getChildren()) {
+                boolean childInALoop = !(child instanceof Function) && (isInALoop || isLoop(child));
+                Node childParent = parent;
+                if (child instanceof GroupStatement || isElseIf(child)) {
+                    childParent = new Node(child, parent, isInALoop);
+                    nodes.add(childParent);
+                }
+                collect(child, childParent, childInALoop);
+            }
+        }
+
+        static ScopeTree of(PsiFile file)
+        {
+            return CachedValuesManager.getCachedValue(file, () -> {
+                ScopeTree tree = new ScopeTree();
+                tree.collect(file, null, false);
+                tree.starts = new int[tree.nodes.size()];
+                for (int i = 0; i < tree.nodes.size(); ++i) {
+                    tree.starts[i] = tree.nodes.get(i).start;
+                }
+                return CachedValueProvider.Result.create(tree, file);
+            });
+        }
+
+        /** innermost first, the psi itself is not included */
+        It<Node> getParents(PsiElement psi)
+        {
+            TextRange range = psi.getTextRange();
+            // last node starting before the psi - the innermost containing one is it or its parent
+            int pos = Arrays.binarySearch(starts, range.getStartOffset());
+            if (pos < 0) {
+                pos = -pos - 2;
+            } else {
+                while (pos + 1 < starts.length && starts[pos + 1] == range.getStartOffset()) {
+                    ++pos;
+                }
+            }
+            Node node = pos >= 0 ? nodes.get(pos) : null;
+            while (node != null && (
+                node.end < range.getEndOffset() ||
+                // same range: either the psi itself or its child
+                node.start == range.getStartOffset() &&
+                node.end == range.getEndOffset() &&
+                !PsiTreeUtil.isAncestor(node.psi, psi, true)
+            )) {
+                node = node.parent;
+            }
+            Node innermost = node;
+            return It(() -> new Iterator<Node>() {
+                Node next = innermost;
+                public boolean hasNext() { return next != null; }
+                public Node next() {
+                    Node current = next;
+                    next = next.parent;
+                    return current;
+                }
+            });
+        }
+
+        L<Node> getParentScopes(PsiElement psi)
+        {
+            return getParents(psi).flt(n -> n.isGroup).arr();
+        }
     }
 
-    private static L<PsiElement> getParentScopes(PsiElement psi)
+    private static Opt<ScopeTree> getTree(PsiElement psi)
     {
-        L<PsiElement> result = list();
-        Opt<PsiElement> next = getParentScope(psi);
-        while (next.has()) {
-            next.thn(result::add);
-            next = getParentScope(next.def(null));
-        }
-        return result;
+        return opt(psi.getContainingFile()).map(ScopeTree::of);
     }
 
     public static boolean isPartOf(PsiElement child, PsiElement grandParent)
@@ -53,28 +150,14 @@ public class ScopeFinder extends Lang
         return false;
     }
 
-    private static Opt<ControlStatementImpl> isInElseIfCondition(PsiElement varReference)
+    private static Opt<ControlStatementImpl> isInElseIfCondition(ScopeTree tree, PsiElement varReference)
     {
-        // you probably want to optimize it cuz now it scans full
-        // parent chain when no elseif was found, but correct would
-        // be to stop when complete expression root was found
-        // oh, and isPartOf() re-iterates through parents again
-
-        PsiElement parent = varReference;
-        while (parent != null) {
-            PsiElement finalParent = parent;
-            Opt<ControlStatementImpl> maybeControl = Opt.fst(
-                () -> opt(null)
-                , () -> Tls.cast(ElseIfImpl.class, finalParent).map(v -> v)
-                , () -> Tls.cast(IfImpl.class, finalParent).flt(v -> opt(v.getParent()).fop(toCast(ElseImpl.class)).has())
-                    .map(v -> v)
-            );
-            if (maybeControl.has()) {
-                return maybeControl.flt(v -> isPartOf(varReference, v.getCondition()));
-            }
-            parent = parent.getParent();
-        }
-        return opt(null);
+        TextRange range = varReference.getTextRange();
+        return tree.getParents(varReference)
+            .flt(n -> !n.isGroup).fst()
+            .fop(n -> Tls.cast(ControlStatementImpl.class, n.psi))
+            .flt(ctrl -> opt(ctrl.getCondition())
+                .any(cond -> cond.getTextRange().contains(range)));
     }
 
     private static boolean isPartOfAssignment(PsiElement assDest, PhpExpression caretVar)
@@ -107,14 +190,6 @@ public class ScopeFinder extends Lang
         }
     }
 
-    private static boolean isInALoop(PsiElement stmtPsi)
-    {
-        return Tls.findParent(stmtPsi, For.class, psi -> !(psi instanceof Function)).map(a -> true).def(false)
-            || Tls.findParent(stmtPsi, While.class, psi -> !(psi instanceof Function)).map(a -> true).def(false)
-            || Tls.findParent(stmtPsi, ForeachImpl.class, psi -> !(psi instanceof Function)).map(a -> true).def(false)
-            || Tls.findParent(stmtPsi, DoWhile.class, psi -> !(psi instanceof Function)).map(a -> true).def(false);
-    }
-
     /**
      * // and this will be true
      * $someVar = ['someKey' => 'dsa'];
@@ -138,25 +213,30 @@ public class ScopeFinder extends Lang
             return false;
         } else if (caretVar.getTextOffset() < reference.getTextOffset()) {
             return false;
+        } else if (!Objects.equals(reference.getContainingFile(), caretVar.getContainingFile())) {
+            return false;
+        }
+        Opt<ScopeTree> treeOpt = getTree(caretVar);
+        if (!treeOpt.has()) {
+            return false;
         }
+        ScopeTree tree = treeOpt.unw();
 
-        Opt<PsiElement> refScope = getParentScope(reference);
-        List<PsiElement> varScopes = getParentScopes(caretVar);
+        Opt<ScopeTree.Node> refScope = tree.getParentScopes(reference).fst();
+        L<ScopeTree.Node> varScopes = tree.getParentScopes(caretVar);
 
-        Opt<ControlStatementImpl> elseIf = isInElseIfCondition(reference);
+        Opt<ControlStatementImpl> elseIf = isInElseIfCondition(tree, reference);
         if (elseIf.has()) {
             for (PsiElement part: elseIf.def(null).getChildren()) {
                 if (part instanceof GroupStatement) {
-                    return varScopes.stream().anyMatch(s -> s.isEquivalentTo(part));
+                    return varScopes.any(s -> s.psi.isEquivalentTo(part));
                 }
             }
             return false;
         }
 
         return refScope
-            .map(declScope -> varScopes
-                .stream()
-                .anyMatch(scope -> scope.isEquivalentTo(declScope)))
+            .map(declScope -> varScopes.any(scope -> scope == declScope))
             .def(false);
     }
 
@@ -187,17 +267,18 @@ public class ScopeFinder extends Lang
             return false;
         }
 
-        L<PsiElement> scopesL = getParentScopes(reference);
-        L<PsiElement> scopesR = getParentScopes(caretVar);
+        Opt<ScopeTree> tree = getTree(caretVar);
+        L<ScopeTree.Node> scopesL = tree.fap(t -> t.getParentScopes(reference)).arr();
+        L<ScopeTree.Node> scopesR = tree.fap(t -> t.getParentScopes(caretVar)).arr();
 
         int l = 0;
         int r = 0;
 
         // 1. find deepest same scope
         while (l < scopesL.size() && r < scopesR.size()) {
-            if (scopesL.get(l).getTextOffset() < scopesR.get(r).getTextOffset()) {
+            if (scopesL.get(l).start < scopesR.get(r).start) {
                 ++r;
-            } else if (scopesL.get(l).getTextOffset() > scopesR.get(r).getTextOffset()) {
+            } else if (scopesL.get(l).start > scopesR.get(r).start) {
                 ++l;
             } else {
                 // could check offset of parent/child to handle
@@ -210,14 +291,14 @@ public class ScopeFinder extends Lang
         // 2. if right inside it are (if|elseif) and (elseif|else) respectively, then false
         if (l < scopesL.size() && r < scopesR.size()) {
             if (l > 0 && r > 0) {
-                PsiElement scopeL = scopesL.get(l - 1);
-                PsiElement scopeR = scopesR.get(r - 1);
-                return opt(scopeL.getParent())
+                ScopeTree.Node scopeL = scopesL.get(l - 1);
+                ScopeTree.Node scopeR = scopesR.get(r - 1);
+                return opt(scopeL.psi.getParent())
                     .flt(ifPar -> ifPar instanceof If || ifPar instanceof ElseIf)
-                    .fop(ifPar -> opt(scopeR.getParent())
+                    .fop(ifPar -> opt(scopeR.psi.getParent())
                         .flt(elsePar -> elsePar instanceof Else || elsePar instanceof ElseIf)
                         .map(elsePar -> {
-                            boolean incompatibleScopes = areIfElseChained(ifPar, elsePar) && !isInALoop(ifPar);
+                            boolean incompatibleScopes = areIfElseChained(ifPar, elsePar) && !scopeL.isInALoop;
                             return !incompatibleScopes;
                         }))
                     .def(true);
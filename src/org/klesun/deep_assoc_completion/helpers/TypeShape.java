@@ -0,0 +1,113 @@
+package org.klesun.deep_assoc_completion.helpers;
+
+import org.klesun.deep_assoc_completion.structures.DeepType;
+import org.klesun.deep_assoc_completion.structures.Key;
+import org.klesun.lang.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * structural fingerprint of resolved types: key names, value shapes, string
+ * values and idea types, but not the PSI they were defined at - used to
+ * reuse return type of a function between calls with same shaped args
+ *
+ * empty if types are too big or include something that can not be
+ * compared structurally, like closures or objects with constructor args,
+ * or if type contains itself
+ */
+public class TypeShape extends Lang
+{
+    final private static int MAX_DEPTH = 3;
+    final private static int MAX_TYPES = 300;
+
+    private int typesLeft = MAX_TYPES;
+    final private Set<DeepType> visiting = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Opt<Object> ofTypes(Iterable<DeepType> types, int depth)
+    {
+        // order and duplicates do not matter in a union
+        Set<Object> shapes = new HashSet<>();
+        for (DeepType type: types) {
+            Opt<Object> shape = ofType(type, depth);
+            if (!shape.has()) {
+                return non();
+            }
+            shapes.add(shape.unw());
+        }
+        return som((Object)shapes);
+    }
+
+    private Opt<Object> ofType(DeepType type, int depth)
+    {
+        if (!visiting.add(type)) {
+            return non();
+        }
+        try {
+            return ofNewType(type, depth);
+        } finally {
+            visiting.remove(type);
+        }
+    }
+
+    private Opt<Object> ofNewType(DeepType type, int depth)
+    {
+        if (--typesLeft < 0
+            || type.returnTypeGetters.size() > 0
+            || type.ctorArgs.has()
+            || type.generics.size() > 0
+            || type.pdoFetchTypes.size() > 0
+            || type.pdoBindVars.size() > 0
+            || type.getProps().has()
+        ) {
+            return non();
+        }
+        L<Object> keyShapes = list();
+        for (Key key: type.getKeys()) {
+            if (depth <= 0) {
+                return non();
+            }
+            Opt<Object> nameShape = ofTypes(key.keyType.getTypes(), depth - 1);
+            Opt<Object> valueShape = nameShape.fop(n -> ofTypes(key.getValueTypes(), depth - 1));
+            if (!valueShape.has()) {
+                return non();
+            }
+            keyShapes.add(list(nameShape.unw(), valueShape.unw(),
+                key.getBriefTypes().map(pst -> pst.getTypes()).arr(),
+                L(key.comments)));
+        }
+        Object shape = list(
+            type.briefType.getTypes(), opt(type.stringValue), type.isNumber,
+            type.cstName, type.clsRefType.map(pst -> pst.getTypes()), keyShapes
+        );
+        return som(shape);
+    }
+
+    public static Opt<Object> of(DeepType type)
+    {
+        return new TypeShape().ofType(type, MAX_DEPTH);
+    }
+
+    /** @return empty if any of passed values can not be fingerprinted */
+    public static Opt<L<Object>> of(Iterable<Mt> mts)
+    {
+        TypeShape shape = new TypeShape();
+        L<Object> result = list();
+        for (Mt mt: mts) {
+            if (mt == Mt.CIRCULAR_REFERENCE) {
+                return non();
+            } else if (mt == Mt.INVALID_PSI) {
+                result.add("INVALID_PSI");
+            } else {
+                Opt<Object> mtShape = shape.ofTypes(mt.types, MAX_DEPTH);
+                if (!mtShape.has()) {
+                    return non();
+                }
+                result.add(mtShape.unw());
+            }
+        }
+        return som(result);
+    }
+}
@@ -6,6 +6,7 @@ import com.jetbrains.php.lang.psi.elements.impl.FunctionImpl;
 import com.jetbrains.php.lang.psi.elements.impl.PhpReturnImpl;
 import com.jetbrains.php.lang.psi.resolve.types.PhpType;
 import org.klesun.deep_assoc_completion.contexts.IExprCtx;
+import org.klesun.deep_assoc_completion.helpers.FuncSummary;
 import org.klesun.deep_assoc_completion.helpers.Mt;
 import org.klesun.deep_assoc_completion.structures.Build;
 import org.klesun.deep_assoc_completion.structures.DeepType;
@@ -39,6 +40,9 @@ public class ClosRes extends Lang
 
     public static L<PhpReturnImpl> findFunctionReturns(PsiElement funcBody)
     {
+        if (funcBody instanceof Function) {
+            return FuncSummary.of((Function)funcBody).getReturns().arr();
+        }
         L<PhpReturnImpl> result = list();
         for (PsiElement child: funcBody.getChildren()) {
             // anonymous functions
@@ -54,6 +58,9 @@ public class ClosRes extends Lang
 
     private static L<PhpYield> findFunctionYields(PsiElement funcBody)
     {
+        if (funcBody instanceof Function) {
+            return FuncSummary.of((Function)funcBody).getYields().arr();
+        }
         L<PhpYield> result = list();
         for (PsiElement child: funcBody.getChildren()) {
             // anonymous functions
@@ -131,7 +138,7 @@ public class ClosRes extends Lang
     public DeepType resolve(FunctionImpl func)
     {
         DeepType result = new DeepType(func, func.getLocalType(true));
-        result.returnTypeGetters.add((callCtx) -> {
+        result.addReturnTypeGetter((callCtx) -> {
             L<T2<String, S<MemIt<DeepType>>>> closureVars = getClosureVars(func)
                 .map(closVar -> {
                     S<MemIt<DeepType>> sup = Tls.onDemand(() ->
@@ -140,7 +147,8 @@ public class ClosRes extends Lang
                 })
                 .arr();
             IExprCtx closCtx = callCtx.withClosure(closureVars, ctx);
-            return new MemIt<>(getReturnedValue(func, closCtx));
+            return new MemIt<>(closCtx.getSearch().findFuncReturns(func, closCtx,
+                retCtx -> getReturnedValue(func, retCtx)));
         });
         return result;
     }
@@ -3,6 +3,8 @@ package org.klesun.deep_assoc_completion.resolvers;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.jetbrains.php.lang.documentation.phpdoc.psi.PhpDocProperty;
 import com.jetbrains.php.lang.documentation.phpdoc.psi.tags.PhpDocPropertyTag;
@@ -19,12 +21,10 @@ import org.klesun.deep_assoc_completion.structures.Assign;
 import org.klesun.deep_assoc_completion.structures.DeepType;
 import org.klesun.deep_assoc_completion.structures.Key;
 import org.klesun.deep_assoc_completion.structures.KeyType;
-import org.klesun.lang.It;
-import org.klesun.lang.Lang;
-import org.klesun.lang.Opt;
-import org.klesun.lang.Tls;
+import org.klesun.lang.*;
 
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public class FieldRes extends Lang
@@ -36,7 +36,33 @@ public class FieldRes extends Lang
         this.ctx = ctx;
     }
 
-    private It<FieldReferenceImpl> findReferences(PsiFile file, String name)
+    private static boolean isInConstructor(PsiElement psi)
+    {
+        return Tls.findParent(psi, Method.class, a -> true)
+            .any(meth -> meth.getName().equals("__construct"));
+    }
+
+    /**
+     * field name -> references it is assigned through in the file,
+     * ones in the constructor first since they usually define the shape
+     */
+    private static Dict<L<FieldReferenceImpl>> indexAssignments(PsiFile file)
+    {
+        Dict<L<FieldReferenceImpl>> nameToRefs = new Dict<>(new HashMap<>());
+        It(PsiTreeUtil.findChildrenOfType(file, FieldReferenceImpl.class))
+            .flt(ref -> ref.getName() != null)
+            .flt(AssRes::isAssignedTo)
+            .arr().srt(ref -> isInConstructor(ref) ? 0 : 1)
+            .fch(ref -> {
+                if (!nameToRefs.containsKey(ref.getName())) {
+                    nameToRefs.put(ref.getName(), list());
+                }
+                nameToRefs.get(ref.getName()).add(ref);
+            });
+        return nameToRefs;
+    }
+
+    private static It<FieldReferenceImpl> findAssignedRefs(PsiFile file, String name)
     {
         // ReferenceSearch seems to cause freezes
 //        SearchScope scope = GlobalSearchScope.fileScope(
@@ -45,18 +71,12 @@ public class FieldRes extends Lang
 //        );
 //        return ReferencesSearch.search(decl, scope, false).findAll();
 
-        // this takes 6 milliseconds on just ApolloPnrFieldsOnDemand.php each time
-        // maybe it can be done more efficiently like iterating manually (could return iterator in such case BTW), caching or reusing IDEA's reference provider
-        // but if I remember correctly, IDEA's reference resolver was not used here because it randomly threw exceptions
-        if (!ctx.getFieldRefCache().containsKey(file)) {
-            long startTime = System.nanoTime();
-            ctx.getFieldRefCache().put(file, PsiTreeUtil.findChildrenOfType(file, FieldReferenceImpl.class));
-            double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
-            //System.out.println("found refs in " + file.getName() + " over " + elapsed + " seconds");
-        }
-        Collection<FieldReferenceImpl> refs = ctx.getFieldRefCache().get(file);
-        return It(refs)
-            .flt(ref -> name.equals(ref.getName()));
+        // walking the whole file took 6 milliseconds on just ApolloPnrFieldsOnDemand.php each
+        // time, so it is done once per file modification and reused by following searches
+        // if I remember correctly, IDEA's reference resolver was not used here because it randomly threw exceptions
+        Map<String, L<FieldReferenceImpl>> nameToRefs = CachedValuesManager.getCachedValue(file,
+            () -> CachedValueProvider.Result.create(indexAssignments(file), file));
+        return opt(nameToRefs.get(name)).fap(refs -> refs);
     }
 
     private static boolean areInSameScope(PsiElement a, PsiElement b)
@@ -81,7 +101,7 @@ public class FieldRes extends Lang
     {
         IExprCtx implCtx = ctx.subCtxEmpty();
         return opt(resolved.getContainingFile())
-            .fap(file -> findReferences(file, fieldRef.getName()))
+            .fap(file -> findAssignedRefs(file, fieldRef.getName()))
             .fap(assPsi -> Tls.findParent(assPsi, Method.class, a -> true)
                 .flt(meth -> meth.getName().equals("__construct"))
                 .map(meth -> fieldRef.getClassReference())
@@ -159,7 +179,7 @@ public class FieldRes extends Lang
                 return new Key(keyType, f)
                     .addType(() -> new Mt(declToExplTypes(f, memCtx)), f.getType());
             });
-        return It.cnc(mt.types.fap(t -> t.props.vls()), declared);
+        return It.cnc(mt.types.fap(t -> t.getProps()), declared);
     }
 
     public It<Field> getBriefDecls(MemberReference fieldRef)
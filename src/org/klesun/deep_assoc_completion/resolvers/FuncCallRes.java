@@ -10,6 +10,7 @@ import org.apache.commons.lang.StringEscapeUtils;
 import org.klesun.deep_assoc_completion.built_in_typedefs.ReturnTypeDefs;
 import org.klesun.deep_assoc_completion.contexts.IExprCtx;
 import org.klesun.deep_assoc_completion.contexts.IFuncCtx;
+import org.klesun.deep_assoc_completion.helpers.FuncSummary;
 import org.klesun.deep_assoc_completion.helpers.Mt;
 import org.klesun.deep_assoc_completion.helpers.ScopeFinder;
 import org.klesun.deep_assoc_completion.resolvers.builtins.MysqliRes;
@@ -33,9 +34,13 @@ public class FuncCallRes extends Lang
         );
     }
 
+    /** summary of the function is used as an index if the block is its whole body */
     private static It<Variable> findVarRefsInFunc(GroupStatement meth, String varName)
     {
-        return findUsedVars(meth).flt(varUsage -> varName.equals(varUsage.getName()));
+        return opt(meth.getParent())
+            .fop(toCast(Function.class))
+            .uni(func -> FuncSummary.of(func).getRefs(varName).cst(Variable.class),
+                () -> findUsedVars(meth).flt(varUsage -> varName.equals(varUsage.getName())));
     }
 
     private static PhpType getDocType(Function func)
@@ -61,10 +66,10 @@ public class FuncCallRes extends Lang
             .wap(Mt::new));
         It<DeepType> eachTMapped = arrMt.types
             .map(t -> new Build(t.definition, PhpType.ARRAY)
-                .keys(t.keys.map((v, i) -> new Key(v.keyType, v.definition)
+                .keys(t.getKeys().map((v, i) -> new Key(v.keyType, v.definition)
                     .addType(getElMt, call.getType().elementType())))
                 .get());
-        MemIt<Key> srcKeys = arrMt.types.fap(t -> t.keys).mem();
+        MemIt<Key> srcKeys = arrMt.types.fap(t -> t.getKeys()).mem();
         It<DeepType> ktg = srcKeys.fap(k -> k.keyType.getTypes());
 
         Key keyEntry = new Key(KeyType.mt(ktg, call), call)
@@ -191,7 +196,7 @@ public class FuncCallRes extends Lang
     {
         String delim = callCtx.getArgMt(0).getStringValues().fst().def(" ");
         It<String> parts = callCtx.getArgMt(1).types
-            .fap(t -> t.keys)
+            .fap(t -> t.getKeys())
             .fap(kv -> kv.getValueTypes())
             .fop(t -> opt(t.stringValue));
         String joined = Tls.implode(delim, parts);
@@ -297,7 +302,7 @@ public class FuncCallRes extends Lang
         } else if (name.equals("array_keys")) {
             Key keyEntry = new Key(KeyType.integer(call))
                 .addType(Tls.onDemand(() -> callCtx.getArgMt(0).types
-                    .fap(t -> t.keys)
+                    .fap(t -> t.getKeys())
                     .fap(k -> k.keyType.getTypes())
                     .fap(kt -> opt(kt.stringValue)
                         .map(keyName -> new DeepType(kt.definition, PhpType.STRING, keyName)))
@@ -306,7 +311,7 @@ public class FuncCallRes extends Lang
                 .keys(som(keyEntry)).itr();
         } else if (name.equals("key")) {
             return callCtx.getArgMt(0)
-                .types.fap(t -> t.keys)
+                .types.fap(t -> t.getKeys())
                 .fap(k -> k.keyType.getTypes());
         } else if (name.equals("func_get_args")) {
             return ctx.func().getArg(new ArgOrder(0, true)).itr().fap(a -> a.types);
@@ -87,7 +87,7 @@ public class MethCallRes extends Lang
                 .fap(f -> opt(f.getDefaultValue()))
                 .fop(toCast(PhpExpression.class))
                 .fap(val -> ctx.limitResolveDepth(15, val))
-                .fap(valt -> valt.keys)
+                .fap(valt -> valt.getKeys())
                 .btw(k -> isAssoc.set(It(k.keyType.getTypes())
                     .fst().any(kt -> !kt.isNumber())))
                 .fap(k -> {
@@ -241,10 +241,13 @@ public class MethCallRes extends Lang
             It<DeepType> docTit = findFuncDocRetType(meth, finalCtx);
             It<DeepType> magicDocTit = Tls.cast(PhpDocMethod.class, meth)
                 .fap(doc -> parseMethDoc(doc, finalCtx));
-            It<DeepType> implTit = impls.fap(m -> It.cnc(
-                opt(m.getReturnType()).fap(rt -> list(new DeepType(rt, rt.getType()))),
-                ClosRes.getReturnedValue(m, finalCtx)
-            ));
+            // there may be dozens of implementations, each resolved independently
+            It<DeepType> implTit = finalCtx.getSearch().cnc(impls
+                .map(m -> (S<Iterable<DeepType>>)() -> It.cnc(
+                    opt(m.getReturnType()).fap(rt -> list(new DeepType(rt, rt.getType()))),
+                    finalCtx.getSearch().findFuncReturns(m, finalCtx,
+                        retCtx -> ClosRes.getReturnedValue(m, retCtx))
+                )));
             return It.cnc(docTit, magicDocTit, implTit);
         };
     }
@@ -135,11 +135,11 @@ public class MiscRes extends Lang
             return som(DeepType.makeInt(deepType.definition, deepType.stringValue));
         } else if (phpType.equals("array")) {
             DeepType arrt = new DeepType(deepType.definition, PhpType.ARRAY);
-            arrt.keys = It.cnc(deepType.keys, deepType.props.vls()).mem();
+            arrt.addKeys(It.cnc(deepType.getKeys(), deepType.getProps()));
             return som(arrt);
         } else if (phpType.equals("object")) {
             DeepType objt = new DeepType(deepType.definition, PhpType.OBJECT);
-            deepType.props.vls().cct(deepType.keys)
+            deepType.getProps().cct(deepType.getKeys())
                 .fch(k -> k.keyType.getNames()
                     .fch(n -> objt.addProp(n, k.definition)
                         .addType(() -> new Mt(k.getValueTypes()))));
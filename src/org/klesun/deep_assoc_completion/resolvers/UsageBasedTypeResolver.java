@@ -12,6 +12,7 @@ import org.klesun.deep_assoc_completion.contexts.FuncCtx;
 import org.klesun.deep_assoc_completion.contexts.IExprCtx;
 import org.klesun.deep_assoc_completion.contexts.SearchCtx;
 import org.klesun.deep_assoc_completion.entry.DeepSettings;
+import org.klesun.deep_assoc_completion.helpers.FuncSummary;
 import org.klesun.deep_assoc_completion.helpers.Mt;
 import org.klesun.deep_assoc_completion.resolvers.var_res.DocParamRes;
 import org.klesun.deep_assoc_completion.structures.Build;
@@ -48,8 +49,11 @@ public class UsageBasedTypeResolver
 
     public UsageBasedTypeResolver(IExprCtx fakeCtx)
     {
-        this(fakeCtx, fakeCtx.getSearch().project.map(proj ->
-            DeepSettings.inst(proj).usageBasedCompletionDepthLimit).def(3));
+        this(fakeCtx, Opt.fst(
+            () -> fakeCtx.getSearch().overrideUsageDepth,
+            () -> fakeCtx.getSearch().project.map(proj ->
+                DeepSettings.inst(proj).usageBasedCompletionDepthLimit)
+        ).def(3));
     }
 
     private It<DeepType> resolveReplaceKeys(ParameterList argList, int order)
@@ -72,24 +76,16 @@ public class UsageBasedTypeResolver
 
     private static It<ArrayIndex> findUsedIndexes(Function meth, String varName)
     {
-        return opt(meth.getLastChild())
-            .fap(chd -> Tls.findChildren(
-                chd,
-                ArrayAccessExpressionImpl.class,
-                subPsi -> !(subPsi instanceof FunctionImpl)
-            ))
-            .fop(acc -> opt(acc.getValue())
-                .fop(toCast(VariableImpl.class))
-                .flt(varUsage -> varName.equals(varUsage.getName()))
-                .map(varUsage -> acc.getIndex()));
+        return FuncSummary.of(meth).getAccesses(varName)
+            .fop(acc -> opt(acc.getIndex()));
     }
 
     public It<DeepType> findArgTypeFromUsage(Function meth, int argOrder, IExprCtx nextCtx)
     {
         return L(meth.getParameters()).gat(argOrder)
             .fop(toCast(ParameterImpl.class))
-            .fap(arg -> It.cnc(
-                findUsedIndexes(meth, arg.getName())
+            .fap(arg -> nextCtx.getSearch().cnc(
+                () -> findUsedIndexes(meth, arg.getName())
                     .map(idx -> idx.getValue())
                     .cst(PhpExpression.class)
                     .fap(lit -> nextCtx.limitResolveDepth(15, lit)
@@ -105,13 +101,13 @@ public class UsageBasedTypeResolver
                                     .get();
                             }))
                     ),
-                opt(arg.getDocComment())
+                () -> opt(arg.getDocComment())
                     .map(doc -> doc.getParamTagByName(arg.getName()))
                     .fap(doc -> new DocParamRes(nextCtx).resolve(doc)),
-                opt(arg.getDefaultValue())
+                () -> opt(arg.getDefaultValue())
                     .cst(PhpExpression.class)
                     .fap(xpr -> nextCtx.subCtxEmpty().findExprType(xpr)),
-                new UsageBasedTypeResolver(nextCtx, depthLeft - 1).findVarTypeFromUsage(arg)
+                () -> new UsageBasedTypeResolver(nextCtx, depthLeft - 1).findVarTypeFromUsage(arg)
             ));
     }
 
@@ -270,7 +266,7 @@ public class UsageBasedTypeResolver
                     .fap(n -> L(argList.getParameters()).gat(1)
                         .cst(PhpExpression.class)
                         .fap(arrExpr -> fakeCtx.findExprType(arrExpr))
-                        .fap(arrt -> arrt.keys.fap(k -> k.keyType.getTypes()))),
+                        .fap(arrt -> arrt.getKeys().fap(k -> k.keyType.getTypes()))),
                 opt(builtInFunc.getName())
                     .flt(n -> n.equals("array_column"))
                     .flt(n -> argOrder == 1 || argOrder == 2)
@@ -281,7 +277,7 @@ public class UsageBasedTypeResolver
                         .fap(rect -> It.cnc(
                             // array_column supports array keys and object
                             // properties (but not magic keys/props AFAIK)
-                            rect.keys,
+                            rect.getKeys(),
                             FieldRes.getPublicProps(rect.mt(),
                                 builtInFunc.getProject(), fakeCtx.subCtxEmpty())
                         ).fap(k -> k.keyType.getTypes()))),
@@ -395,7 +391,7 @@ public class UsageBasedTypeResolver
                     .fap(fld -> opt(fld.getClassReference()))
                     .fap(fld -> fakeCtx.findExprType(fld))
                     // TODO: add declared field names here too
-                    .fap(objt -> objt.props.vls())
+                    .fap(objt -> objt.getProps())
                     .fap(prop -> prop.keyType.getTypes()),
                 // $this->props[$varName]
                 opt(refVar.getParent())
@@ -405,7 +401,7 @@ public class UsageBasedTypeResolver
                     .fap(acc -> opt(acc.getValue()))
                     .cst(PhpExpression.class)
                     .fap(value -> fakeCtx.findExprType(value))
-                    .fap(objt -> objt.keys)
+                    .fap(objt -> objt.getKeys())
                     .fap(prop -> prop.keyType.getTypes())
             ));
     }
@@ -456,7 +452,7 @@ public class UsageBasedTypeResolver
                             return arrTit.fap(t -> Mt.getKeySt(t, key.def(null)));
                         } else {
                             Set<String> alreadyDeclared = getExplicitKeys(arrCtor, caretExpr);
-                            return arrTit.fap(t -> t.keys.fap(k -> k.keyType.getTypes()))
+                            return arrTit.fap(t -> t.getKeys().fap(k -> k.keyType.getTypes()))
                                 .flt(kt -> !alreadyDeclared.contains(kt.stringValue));
                         }
                     }),
@@ -474,7 +470,7 @@ public class UsageBasedTypeResolver
                                 // if user just started typing the key, there is no => after it, hence IDEA
                                 // parses it as sequential element - show assoc key options here as well if any
                                 Tls.cast(StringLiteralExpression.class, caretExpr)
-                                    .fap(lit -> t.keys.fap(k -> k.keyType.getTypes()))
+                                    .fap(lit -> t.getKeys().fap(k -> k.keyType.getTypes()))
                                     .flt(kt -> !kt.isNumber())
                                     .flt(kt -> !alreadyDeclared.contains(kt.stringValue))
                             ));
@@ -130,7 +130,7 @@ public class VarRes
             .map(tup -> () -> tup.nme((arr, keyVarOpt, valOpt, tuple) -> {
                 It<DeepType> artit = ctx.findExprType(arr);
                 if (opt(varRef).equals(keyVarOpt)) {
-                    return artit.fap(t -> t.keys)
+                    return artit.fap(t -> t.getKeys())
                         .fap(k -> k.keyType.getTypes())
                         .fap(t -> opt(t.stringValue)
                             .map(name -> new DeepType(t.definition, PhpType.STRING, name)));
@@ -172,7 +172,7 @@ public class VarRes
                         return opt(null);
                     })
                     .map(i -> arrts
-                        .fap(t -> t.keys)
+                        .fap(t -> t.getKeys())
                         .flt(k -> k.keyType.getNames().any(n -> n.equals(i + "")))
                         .fap(k -> k.getTypeGetters()))
                 )
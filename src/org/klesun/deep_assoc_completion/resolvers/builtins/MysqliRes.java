@@ -118,7 +118,7 @@ public class MysqliRes
                 return It.cnc(
                     som(new DeepType(expr).btw(t -> {
                         // it's not a PDO, but nah
-                        rowTypes.itr().fch((rowt, i) -> t.pdoFetchTypes.add(rowt));
+                        rowTypes.itr().fch((rowt, i) -> t.addPdoFetchType(rowt));
                     })),
                     // since PHP 5.4 mysqli_result can also be iterated
                     som(Mt.getInArraySt(It(rowTypes), expr))
@@ -138,8 +138,8 @@ public class MysqliRes
                 .fch(strType -> {
                     DeepType fetchType = new MysqliRes(ctx)
                         .parseSqlSelect(strType, meth.getProject());
-                    type.pdoFetchTypes.add(fetchType);
-                    getBindVars(strType).fch(type.pdoBindVars::add);
+                    type.addPdoFetchType(fetchType);
+                    getBindVars(strType).fch(type::addPdoBindVar);
                 });
             return It(list(type));
         } else if (clsNme.equals("PDOStatement") && meth.getName().equals("fetch")
@@ -2,6 +2,8 @@ package org.klesun.deep_assoc_completion.resolvers.var_res;
 
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.jetbrains.php.lang.documentation.phpdoc.psi.impl.PhpDocCommentImpl;
 import com.jetbrains.php.lang.documentation.phpdoc.psi.impl.PhpDocRefImpl;
@@ -11,6 +13,7 @@ import com.jetbrains.php.lang.psi.elements.impl.*;
 import org.jetbrains.annotations.Nullable;
 import org.klesun.deep_assoc_completion.built_in_typedefs.Cst;
 import org.klesun.deep_assoc_completion.contexts.IExprCtx;
+import org.klesun.deep_assoc_completion.helpers.CallGraph;
 import org.klesun.deep_assoc_completion.helpers.Mt;
 import org.klesun.deep_assoc_completion.resolvers.ClosRes;
 import org.klesun.deep_assoc_completion.resolvers.MethCallRes;
@@ -19,15 +22,69 @@ import org.klesun.deep_assoc_completion.resolvers.UsageBasedTypeResolver;
 import org.klesun.deep_assoc_completion.structures.ArgOrder;
 import org.klesun.deep_assoc_completion.structures.DeepType;
 import org.klesun.deep_assoc_completion.structures.Mkt;
-import org.klesun.lang.It;
-import org.klesun.lang.Lang;
-import org.klesun.lang.Opt;
-import org.klesun.lang.Tls;
+import org.klesun.lang.*;
+
+import java.util.HashMap;
 
 public class ArgRes extends Lang
 {
     private IExprCtx trace;
 
+    /** method calls and [$this, 'name'] callables in a file, by method name */
+    private static class CallSites
+    {
+        final Dict<L<MethodReferenceImpl>> nameToCalls = new Dict<>(new HashMap<>());
+        final Dict<L<ArrayCreationExpressionImpl>> nameToCallables = new Dict<>(new HashMap<>());
+
+        private static <T> void add(Dict<L<T>> nameToPsis, String name, T psi)
+        {
+            if (!nameToPsis.containsKey(name)) {
+                nameToPsis.put(name, list());
+            }
+            nameToPsis.get(name).add(psi);
+        }
+
+        private static Opt<String> getSelfCallableName(ArrayCreationExpressionImpl arr)
+        {
+            return som(arr.getChildren())
+                .flt(children -> children.length == 2)
+                .flt(children -> children[0].getText().equals("$this")
+                    || children[0].getText().equals("self::class")
+                    || children[0].getText().equals("static::class"))
+                .fop(children -> opt(children[1].getFirstChild()))
+                .fop(toCast(StringLiteralExpression.class))
+                .map(str -> str.getContents());
+        }
+
+        /** single walk through the file, repeated only when it changes */
+        static CallSites inFile(PsiFile file)
+        {
+            return CachedValuesManager.getCachedValue(file, () -> {
+                CallSites sites = new CallSites();
+                PsiTreeUtil.processElements(file, psi -> {
+                    Tls.cast(MethodReferenceImpl.class, psi)
+                        .thn(call -> opt(call.getName())
+                            .thn(name -> add(sites.nameToCalls, name, call)));
+                    Tls.cast(ArrayCreationExpressionImpl.class, psi)
+                        .thn(arr -> getSelfCallableName(arr)
+                            .thn(name -> add(sites.nameToCallables, name, arr)));
+                    return true;
+                });
+                return CachedValueProvider.Result.create(sites, file);
+            });
+        }
+
+        It<MethodReferenceImpl> getCalls(String name)
+        {
+            return opt(nameToCalls.get(name)).fap(calls -> calls);
+        }
+
+        It<ArrayCreationExpressionImpl> getCallables(String name)
+        {
+            return opt(nameToCallables.get(name)).fap(arrs -> arrs);
+        }
+    }
+
     public ArgRes(IExprCtx trace)
     {
         this.trace = trace;
@@ -161,34 +218,44 @@ public class ArgRes extends Lang
                 }));
     }
 
-    // $result = static::doSomething($args);
-    private It<DeepType> getPrivateFuncUsageArg(FunctionImpl func, int argOrderInLambda)
+    /** `Utils::doSomething` or `\Ns\Utils::doSomething`, checked before resolve() which is expensive */
+    private static boolean mayCallClassOf(MethodReferenceImpl call, MethodImpl meth)
+    {
+        return opt(meth.getContainingClass())
+            .any(cls -> opt(call.getClassReference())
+                .map(ref -> ref.getText())
+                .any(txt -> txt.equals(cls.getName()) || txt.endsWith("\\" + cls.getName())));
+    }
+
+    // $result = static::doSomething($args); or Utils::doSomething($args) in other file
+    private It<DeepType> getMethodUsageArg(FunctionImpl func, int argOrderInLambda)
     {
         return Tls.cast(MethodImpl.class, func)
             .flt(a -> func.getParameters().length > 0)
             .fap(meth -> {
-                PsiFile file = func.getContainingFile();
+                CallSites sites = CallSites.inFile(func.getContainingFile());
+                It<MethodReferenceImpl> sameFileCalls = sites.getCalls(meth.getName())
+                    .flt(call -> opt(call.getClassReference()).map(ref -> ref.getText())
+                        .flt(txt -> txt.equals("$this") || txt.equals("self") ||
+                                    txt.equals("static") || func.equals(call.resolve()))
+                        .has());
+                // Utils::doSomething($args) from other files, taken from the project call graph,
+                // each resolved call site counts as an expression, so it stops with the search
+                It<MethodReferenceImpl> otherFileCalls = opt(meth)
+                    .flt(m -> m.isStatic() && !m.getModifier().isPrivate())
+                    .fap(m -> CallGraph.inst(m.getProject()))
+                    .fap(graph -> graph.getCalls(meth.getName()))
+                    .fop(toCast(MethodReferenceImpl.class))
+                    .flt(call -> !func.getContainingFile().equals(call.getContainingFile()))
+                    .flt(call -> mayCallClassOf(call, meth))
+                    .flt(call -> trace.getSearch().takeExpressionBudget())
+                    .flt(call -> func.equals(call.resolve()));
                 return It.cnc(
-                    It(PsiTreeUtil.findChildrenOfType(file, MethodReferenceImpl.class))
-                        .flt(call -> meth.getName().equals(call.getName()))
-                        .flt(call -> opt(call.getClassReference()).map(ref -> ref.getText())
-                            .flt(txt -> txt.equals("$this") || txt.equals("self") ||
-                                        txt.equals("static") || func.equals(call.resolve()))
-                            .has())
+                    It.cnc(sameFileCalls, otherFileCalls)
                         .fop(call -> L(call.getParameters()).gat(argOrderInLambda))
                         .fop(toCast(PhpExpression.class))
                         .fap(arg -> trace.subCtxEmpty().findExprType(arg)),
-                    It(PsiTreeUtil.findChildrenOfType(file, ArrayCreationExpressionImpl.class))
-                        .flt(arr -> arr.getChildren().length == 2
-                                && L(arr.getChildren()).gat(0)
-                                    .flt(psi -> psi.getText().equals("$this")
-                                            || psi.getText().equals("self::class")
-                                            || psi.getText().equals("static::class"))
-                                    .has()
-                                && L(arr.getChildren()).gat(1).map(psi -> psi.getFirstChild())
-                                    .fop(toCast(StringLiteralExpression.class))
-                                    .flt(str -> str.getContents().equals(meth.getName()))
-                                    .has())
+                    sites.getCallables(meth.getName())
                         .fap(arr -> It.frs(
                             () -> new ArgRes(trace.subCtxEmpty())
                                 .getInlineFuncArg(arr, argOrderInLambda),
@@ -216,7 +283,7 @@ public class ArgRes extends Lang
                 .fap(order -> It.frs(() -> It.non()
                     , () -> getInlineFuncArg(clos.getParent(), order)
                     , () -> getFuncVarUsageArg(clos.getParent(), order)
-                    , () -> getPrivateFuncUsageArg(clos, order)
+                    , () -> getMethodUsageArg(clos, order)
                 )))
             ;
     }
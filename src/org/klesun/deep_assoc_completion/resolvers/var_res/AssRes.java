@@ -91,6 +91,12 @@ public class AssRes extends Lang
             ));
     }
 
+    /** whether reference is the destination of `$ref = ` or `$ref['key'][] = ` */
+    public static boolean isAssignedTo(PsiElement varRef)
+    {
+        return findParentAssignment(varRef).has();
+    }
+
     /**
      * @param varRef - `$var` reference or `$this->field` reference
      */
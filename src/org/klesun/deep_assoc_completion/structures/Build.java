@@ -23,7 +23,7 @@ public class Build {
     }
 
     public Build stringValue(String stringValue) {
-        this.deepType.stringValue = stringValue;
+        this.deepType.stringValue = DeepType.intern(stringValue);
         return this;
     }
 
@@ -53,7 +53,7 @@ public class Build {
     }
 
     public Build keys(Iterable<Key> keys) {
-        this.deepType.keys = new MemIt<>(keys);
+        this.deepType.addKeys(keys);
         return this;
     }
 
@@ -12,6 +12,7 @@ import org.klesun.deep_assoc_completion.helpers.*;
 import org.klesun.lang.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * contains info about associative
@@ -21,36 +22,146 @@ public class DeepType extends Lang
 {
     // please, do not change this fields directly - ise Build.java
     // probably should make them all protected and add getters...
+    //
+    // most types are scalars and literals, so optional parts share immutable
+    // empty instances till something is added to them, see add*()
+
+    final private static L NO_LIST = L(Collections.emptyList());
+    final private static Opt NONE = non();
+    // longer strings are usually sql or text, not key names
+    final private static int MAX_INTERNED_LENGTH = 64;
+    // past that many names new ones are just not interned, so that
+    // the table did not grow with every project opened in the ide
+    final private static int MAX_INTERNED_COUNT = 50000;
+    final private static Map<String, String> interned = new ConcurrentHashMap<>();
 
-    public MemIt<Key> keys = new MemIt<>(It.non());
+    // null till first add, since a MemIt has own lock and progress, it can not be shared
+    private @Nullable MemIt<Key> keys = null;
     // just like array keys, but dynamic object properties
-    public final Dict<Key> props = new Dict<>(L());
+    private @Nullable Dict<Key> props = null;
     // applicable to closures and function names
     // (starting with self::) and [$obj, 'functionName'] tuples
     // slowly migrating returnTypes from constant values to a function
     // list of functions that take arg list and return list of return types
     //
     // probably would make sense to make it MemIt as well...
-    public L<F<IExprCtx, MemIt<DeepType>>> returnTypeGetters = L();
-    public final L<DeepType> pdoFetchTypes = L();
-    public final LinkedHashSet<String> pdoBindVars = new LinkedHashSet<>();
-    public Opt<IExprCtx> ctorArgs = opt(null);
+    public L<F<IExprCtx, MemIt<DeepType>>> returnTypeGetters = noList();
+    public L<DeepType> pdoFetchTypes = noList();
+    public Set<String> pdoBindVars = Collections.emptySet();
+    public Opt<IExprCtx> ctorArgs = none();
     // from PSALM @template phpdoc
-    public L<Mt> generics = L();
-    public Opt<PhpType> clsRefType = non();
+    public L<Mt> generics = noList();
+    public Opt<PhpType> clsRefType = none();
     // constant name
-    public Opt<String> cstName = non();
+    public Opt<String> cstName = none();
     public @Nullable String stringValue = null;
     public final PsiElement definition;
     public final PhpType briefType;
     public boolean isNumber = false;
     public boolean isExactPsi = true;
+    // many array types merged into this one, see SearchCtx.widen()
+    public boolean isWidened = false;
+    // lookup of keys by name, see getKeysOfName()
+    private volatile KeyIndex keyIndex = null;
+
+    /** immutable, so that it could be shared by all types that have nothing in it */
+    public static <T> L<T> noList()
+    {
+        return (L<T>)NO_LIST;
+    }
+
+    private static <T> Opt<T> none()
+    {
+        return (Opt<T>)NONE;
+    }
+
+    /** same key names come from many places, so they better were a single object */
+    public static @Nullable String intern(@Nullable String stringValue)
+    {
+        if (stringValue == null || stringValue.length() > MAX_INTERNED_LENGTH) {
+            return stringValue;
+        }
+        String same = interned.get(stringValue);
+        if (same != null) {
+            return same;
+        } else if (interned.size() >= MAX_INTERNED_COUNT) {
+            return stringValue;
+        } else {
+            same = interned.putIfAbsent(stringValue, stringValue);
+            return same != null ? same : stringValue;
+        }
+    }
+
+    public IIt<Key> getKeys()
+    {
+        MemIt<Key> keys = this.keys;
+        return keys != null ? keys : It.non();
+    }
+
+    /** whether any keys were added, does not resolve them */
+    public boolean hasKeySource()
+    {
+        return keys != null;
+    }
+
+    /**
+     * calls the observer on each key remembered from now on
+     * @return false if keys are observed already or there are none
+     */
+    public boolean observeKeys(C<Key> observer)
+    {
+        MemIt<Key> keys = this.keys;
+        return keys != null && keys.observeMemoized(observer);
+    }
+
+    public void addKeys(Iterable<Key> added)
+    {
+        keys = keys == null
+            ? new MemIt<>(added)
+            : It.cnc(keys, added).mem();
+    }
+
+    public It<Key> getProps()
+    {
+        Dict<Key> props = this.props;
+        return props != null ? props.vls() : It.non();
+    }
+
+    public It<String> getPropNames()
+    {
+        Dict<Key> props = this.props;
+        return props != null ? props.kys() : It.non();
+    }
+
+    public void addReturnTypeGetter(F<IExprCtx, MemIt<DeepType>> getter)
+    {
+        if (returnTypeGetters.size() == 0) {
+            returnTypeGetters = list();
+        }
+        returnTypeGetters.add(getter);
+    }
+
+    public void addPdoFetchType(DeepType fetchType)
+    {
+        if (pdoFetchTypes.size() == 0) {
+            pdoFetchTypes = list();
+        }
+        pdoFetchTypes.add(fetchType);
+    }
+
+    public void addPdoBindVar(String varName)
+    {
+        if (pdoBindVars.size() == 0) {
+            pdoBindVars = new LinkedHashSet<>();
+        }
+        pdoBindVars.add(varName);
+    }
 
     private DeepType(@NotNull PsiElement definition, PhpType briefType, String stringValue, boolean isExactPsi)
     {
         this.definition = definition;
         this.briefType = briefType.filterUnknown().filterMixed();
-        this.stringValue = stringValue;
+        this.stringValue = intern(stringValue);
         this.isExactPsi = isExactPsi;
     }
 
@@ -109,11 +220,37 @@ public class DeepType extends Lang
         return returnTypeGetters.fap(g -> g.apply(ctx));
     }
 
+    /** built on first lookup and again if keys were replaced, none if there are no keys */
+    private Opt<KeyIndex> getKeyIndex()
+    {
+        KeyIndex index = keyIndex;
+        MemIt<Key> keys = this.keys;
+        if (keys == null) {
+            return non();
+        }
+        if (index == null || index.source != keys) {
+            // if two threads get here at once, one of indexes is just dropped
+            index = new KeyIndex(keys);
+            keyIndex = index;
+        }
+        return som(index);
+    }
+
+    /** keys that may have this name, including ones with unknown name */
+    public It<Key> getKeysOfName(String keyName)
+    {
+        return It(() -> getKeyIndex().fap(idx -> idx.findKeys(keyName)).iterator());
+    }
+
+    public It<String> getKeyNames()
+    {
+        return It(() -> getKeyIndex().fap(idx -> idx.getNames()).iterator());
+    }
+
     public It<DeepType> getListElemTypes()
     {
-        // TODO: get rid of this function, we should not iterate through all types during resolution
-        return keys
-            .flt(k -> k.typeGetters.has() && k.keyType.getTypes().any(kt -> kt.isNumber() || kt.stringValue == null))
+        return It(() -> getKeyIndex().fap(idx -> idx.getElKeys()).iterator())
+            .flt(k -> k.typeGetters.has())
             .fap(k -> k.typeGetters.fap(mtg -> mtg.get().types));
     }
 
@@ -121,7 +258,7 @@ public class DeepType extends Lang
     public Key addKey(KeyType keyType)
     {
         Key keyEntry = new Key(keyType, definition);
-        keys = It.cnc(keys, som(keyEntry)).mem();
+        addKeys(som(keyEntry));
         return keyEntry;
     }
 
@@ -130,6 +267,9 @@ public class DeepType extends Lang
         DeepType kt = new DeepType(definition, PhpType.STRING, name);
         KeyType keyType = KeyType.mt(som(kt), definition);
         Key keyEntry = new Key(keyType, definition);
+        if (props == null) {
+            props = new Dict<>(L());
+        }
         props.put(name, keyEntry);
         return keyEntry;
     }
@@ -153,12 +293,12 @@ public class DeepType extends Lang
         circularRefs.addAll(types);
 
         LinkedHashMap<String, List<DeepType>> mergedKeys = new LinkedHashMap<>();
-        Set<String> mergedProps = new HashSet<>(L(types).fap(t -> t.props.kys()).arr());
+        Set<String> mergedProps = new HashSet<>(L(types).fap(t -> t.getPropNames()).arr());
         List<DeepType> indexTypes = list();
         List<String> briefTypes = list();
 
         types.forEach(t -> {
-            t.keys.forEach((v) -> {
+            t.getKeys().forEach((v) -> {
                 v.keyType.getNames().fch(k -> {
                     if (!mergedKeys.containsKey(k)) {
                         mergedKeys.put(k, list());
@@ -198,12 +338,12 @@ public class DeepType extends Lang
             typeInfo = clsRefType.unw() + "::class";
         } else if (stringValue != null) {
             typeInfo = "'" + stringValue + "'";
-        } else if (keys.has()) {
-            typeInfo = "[" + keys.fap(k -> k.getBriefKey()).unq().str() + "]";
+        } else if (getKeys().has()) {
+            typeInfo = "[" + getKeys().fap(k -> k.getBriefKey()).unq().str() + (isWidened ? ", ..." : "") + "]";
         } else if (returnTypeGetters.has()) {
             typeInfo = "(...) ==> {...}";
-        } else if (props.size() > 0) {
-            typeInfo = "obj(" + props.kys().str() + ")";
+        } else if (getProps().has()) {
+            typeInfo = "obj(" + getPropNames().str() + ")";
         }
         return opt(typeInfo);
     }
@@ -225,8 +365,7 @@ public class DeepType extends Lang
 
     public boolean hasNumberIndexes()
     {
-        // TODO: get rid of this function, we should not iterate through all types during resolution
-        return It(keys).any(k -> k.keyType.getTypes().any(kt -> kt.isNumber()));
+        return getKeyIndex().any(idx -> idx.hasNumberIndexes());
     }
 
     public boolean isNumber()
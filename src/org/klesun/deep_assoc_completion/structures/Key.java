@@ -6,6 +6,7 @@ import org.jetbrains.annotations.NotNull;
 import org.klesun.deep_assoc_completion.helpers.Mt;
 import org.klesun.lang.*;
 
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -13,12 +14,13 @@ public class Key
 {
     final public KeyType keyType;
     // TODO: rename to valueTypeGetters
-    final public L<Tls.OnDemand<Mt>> typeGetters = Lang.L();
+    // (lists are allocated on first addType(), please, do not add to them directly)
+    public L<Tls.OnDemand<Mt>> typeGetters = DeepType.noList();
     // to get quick built-in type info
-    final private L<PhpType> briefTypes = Lang.L();
+    private L<PhpType> briefTypes = DeepType.noList();
     // where Go To Definition will lead
     final public PsiElement definition;
-    public Set<String> comments = new LinkedHashSet<>();
+    public Set<String> comments = Collections.emptySet();
 
     public Key(String name, @NotNull PsiElement definition)
     {
@@ -41,6 +43,10 @@ public class Key
 
     public Key addType(Lang.S<Mt> getter, PhpType briefType)
     {
+        if (typeGetters.size() == 0) {
+            typeGetters = Lang.list();
+            briefTypes = Lang.list();
+        }
         typeGetters.add(Tls.onDemand(getter));
         briefTypes.add(briefType);
         return this;
@@ -48,7 +54,12 @@ public class Key
 
     public Key addComments(Iterable<String> comments)
     {
-        comments.forEach(this.comments::add);
+        comments.forEach(comment -> {
+            if (this.comments.size() == 0) {
+                this.comments = new LinkedHashSet<>();
+            }
+            this.comments.add(comment);
+        });
         return this;
     }
 
@@ -0,0 +1,223 @@
+package org.klesun.deep_assoc_completion.structures;
+
+import org.klesun.lang.*;
+
+import java.util.*;
+
+import static org.klesun.lang.Lang.*;
+
+/**
+ * keys of a DeepType by name, so that `$conf['a']['b']['c']` on an array with
+ * thousands of keys did not check name of every key on each step
+ *
+ * keys are indexed as lookups take them from the type, only as far as the lookup
+ * goes, so fst() on a found key does not resolve the rest of them. A key whose
+ * name was not resolved till the end yet (nobody needed it, circular reference
+ * or interrupt) stays "unsure" and is checked on every lookup till it is
+ */
+class KeyIndex
+{
+    final MemIt<Key> source;
+    // state is only changed under this lock, never during resolution
+    final private Object stateLock = new Object();
+    final private L<Key> keys = list();
+    // literal key name -> positions of keys having it
+    final private Map<String, L<Integer>> nameToPoses = new LinkedHashMap<>();
+    // positions of keys with unknown name, matching any name or only numbers
+    final private L<Integer> anyNamePoses = list();
+    final private L<Integer> numNamePoses = list();
+    final private L<Integer> unsurePoses = list();
+    // element type summary: keys with number or unknown name
+    final private L<Key> elKeys = list();
+    private boolean hasNumberIndexes = false;
+
+    KeyIndex(MemIt<Key> source)
+    {
+        this.source = source;
+    }
+
+    private static boolean matches(Key key, String keyName)
+    {
+        return key.keyType.getTypes()
+            .any(kt -> keyName.equals(kt.stringValue)
+                || kt.stringValue == null
+                && (!kt.isNumber() || Tls.isNum(keyName)));
+    }
+
+    private static boolean isElKey(Key key)
+    {
+        return key.keyType.getTypes().any(kt -> kt.isNumber() || kt.stringValue == null);
+    }
+
+    private static boolean isNumKey(Key key)
+    {
+        return key.keyType.getTypes().any(kt -> kt.isNumber());
+    }
+
+    /**
+     * name types of a key that were all resolved already, without resolving
+     * anything and without Interrupt cutting the memoized values half way
+     */
+    private static Opt<L<DeepType>> getResolvedNames(Key key)
+    {
+        MemIt<DeepType> kts = key.keyType.getTypes();
+        if (!kts.isComplete()) {
+            return non();
+        }
+        // size of a complete MemIt is known, so gat() below only reads memoized
+        // values - in a plain loop, since It chains stop on Interrupt half way
+        return kts.size().map(cnt -> {
+            L<DeepType> resolved = list();
+            for (int i = 0; i < cnt; ++i) {
+                kts.gat(i).thn(resolved::add);
+            }
+            return resolved;
+        });
+    }
+
+    /** should be called with stateLock */
+    private void index(int pos, L<DeepType> kts)
+    {
+        Key key = keys.get(pos);
+        for (DeepType kt: kts) {
+            if (kt.stringValue != null) {
+                nameToPoses.computeIfAbsent(kt.stringValue, k -> list()).add(pos);
+            } else if (kt.isNumber()) {
+                numNamePoses.add(pos);
+            } else {
+                anyNamePoses.add(pos);
+            }
+            hasNumberIndexes = hasNumberIndexes || kt.isNumber();
+        }
+        if (kts.any(kt -> kt.isNumber() || kt.stringValue == null)) {
+            elKeys.add(key);
+        }
+    }
+
+    /** @param pos - position of the key in the source, it is ignored if other lookup indexed it already */
+    private void addKey(int pos, Key key)
+    {
+        Opt<L<DeepType>> resolved = getResolvedNames(key);
+        synchronized (stateLock) {
+            if (keys.size() != pos) {
+                return;
+            }
+            keys.add(key);
+            if (resolved.has()) {
+                index(pos, resolved.unw());
+            } else {
+                unsurePoses.add(pos);
+            }
+        }
+    }
+
+    /** unsure keys whose names got resolved by someone meanwhile */
+    private void indexResolvedUnsure()
+    {
+        synchronized (stateLock) {
+            L<Integer> resolved = unsurePoses
+                .flt(pos -> keys.get(pos).keyType.getTypes().isComplete()).arr();
+            if (resolved.size() > 0) {
+                unsurePoses.removeAll(resolved);
+                resolved.fch(pos -> getResolvedNames(keys.get(pos))
+                    .thn(kts -> index(pos, kts)));
+            }
+        }
+    }
+
+    /**
+     * keys source did not give yet, indexed as they are taken - lookup from
+     * inside resolution of a key of this same type just uses what was indexed so far
+     */
+    private It<Key> takeRest(int from)
+    {
+        return It(() -> new Iterator<Key>() {
+            int pos = from;
+            Opt<Key> next = non();
+            public boolean hasNext() {
+                if (!next.has()) {
+                    next = source.gat(pos);
+                    next.thn(key -> addKey(pos, key));
+                }
+                return next.has();
+            }
+            public Key next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("no more keys in the source");
+                }
+                Key key = next.unw();
+                next = non();
+                ++pos;
+                return key;
+            }
+        });
+    }
+
+    It<Key> findKeys(String keyName)
+    {
+        indexResolvedUnsure();
+        // in order they were defined in
+        Set<Integer> poses = new TreeSet<>();
+        L<Key> found;
+        L<Key> unsure;
+        int indexed;
+        synchronized (stateLock) {
+            opt(nameToPoses.get(keyName)).thn(poses::addAll);
+            poses.addAll(anyNamePoses);
+            if (Tls.isNum(keyName)) {
+                poses.addAll(numNamePoses);
+            }
+            found = It(poses).map(keys::get).arr();
+            unsure = unsurePoses.map(keys::get).arr();
+            indexed = keys.size();
+        }
+        return It.cnc(found, It.cnc(unsure, takeRest(indexed))
+            .flt(k -> matches(k, keyName)));
+    }
+
+    It<String> getNames()
+    {
+        indexResolvedUnsure();
+        L<String> names;
+        L<Key> unsure;
+        int indexed;
+        synchronized (stateLock) {
+            names = It(nameToPoses.keySet()).arr();
+            unsure = unsurePoses.map(keys::get).arr();
+            indexed = keys.size();
+        }
+        return It.cnc(names, It.cnc(unsure, takeRest(indexed))
+            .fap(k -> k.keyType.getNames()));
+    }
+
+    It<Key> getElKeys()
+    {
+        indexResolvedUnsure();
+        L<Key> found;
+        L<Key> unsure;
+        int indexed;
+        synchronized (stateLock) {
+            found = elKeys.itr().arr();
+            unsure = unsurePoses.map(keys::get).arr();
+            indexed = keys.size();
+        }
+        return It.cnc(found, It.cnc(unsure, takeRest(indexed))
+            .flt(KeyIndex::isElKey));
+    }
+
+    boolean hasNumberIndexes()
+    {
+        indexResolvedUnsure();
+        L<Key> unsure;
+        int indexed;
+        synchronized (stateLock) {
+            if (hasNumberIndexes) {
+                return true;
+            }
+            unsure = unsurePoses.map(keys::get).arr();
+            indexed = keys.size();
+        }
+        return It.cnc(unsure, takeRest(indexed))
+            .any(KeyIndex::isNumKey);
+    }
+}
@@ -21,7 +21,8 @@ public class KeyType
 
     public static KeyType mt(Iterable<DeepType> mtg, PsiElement definition)
     {
-        Iterable<DeepType> anyt = som(new DeepType(definition, PhpType.MIXED));
+        // only created if there are no types
+        Iterable<DeepType> anyt = () -> som(new DeepType(definition, PhpType.MIXED)).iterator();
         return new KeyType(It(mtg).def(anyt).mem(), definition);
     }
 
@@ -2,39 +2,61 @@ package org.klesun.deep_assoc_completion.structures;
 
 import com.intellij.psi.PsiElement;
 import org.klesun.deep_assoc_completion.contexts.IExprCtx;
-import org.klesun.lang.L;
+import org.klesun.deep_assoc_completion.contexts.IFuncCtx;
 import org.klesun.lang.Tls;
 
-import static org.klesun.lang.Lang.list;
+import java.util.Objects;
 
 /**
  * defies a uniqueness of a PSI
  * needed because there are PSI created dynamically by us from phpdoc text
+ *
+ * all values are taken once on creation, so that
+ * cache lookup did not have to get text of the PSI
  */
 public class PsiSig {
-    final private PsiElement psi;
-    final private IExprCtx ctx;
+    final private PsiElement realPsi;
+    final private IFuncCtx funcCtx;
+    // following are only needed to tell apart PSI-s parsed from
+    // same phpdoc, since such PSI-s are created anew every time
+    final private int offset;
+    final private int length;
+    final private Class psiClass;
+    // same doc or decl is the fake source of different parsed expressions
+    // that may happen to have same length, like `['a'=>1]` and `['b'=>2]`
+    final private String text;
+    final private int hash;
 
     public PsiSig(PsiElement psi, IExprCtx ctx) {
-        this.psi = psi;
-        this.ctx = ctx;
-    }
-
-    private L<Object> getHashValues() {
-        PsiElement realPsi = ctx.getFakeFileSource().def(psi);
-        return list(realPsi, ctx.func());
+        this.realPsi = ctx.getFakeFileSource().def(psi);
+        this.funcCtx = ctx.func();
+        if (ctx.getFakeFileSource().has()) {
+            this.offset = psi.getTextOffset();
+            this.length = psi.getTextLength();
+            this.psiClass = psi.getClass();
+            this.text = psi.getText();
+        } else {
+            this.offset = -1;
+            this.length = -1;
+            this.psiClass = null;
+            this.text = null;
+        }
+        this.hash = Objects.hash(realPsi, funcCtx, offset, length, text);
     }
 
     public int hashCode() {
-        return getHashValues().hashCode();
+        return hash;
     }
 
     public boolean equals(Object thatRaw) {
         return Tls.cast(PsiSig.class, thatRaw)
             .any(that ->
-                this.getHashValues().equals(that.getHashValues()) &&
-                this.psi.getTextOffset() == that.psi.getTextOffset() &&
-                this.psi.getClass().equals(that.psi.getClass()) &&
-                this.psi.getText().equals(that.psi.getText()));
+                this.hash == that.hash &&
+                this.offset == that.offset &&
+                this.length == that.length &&
+                this.psiClass == that.psiClass &&
+                Objects.equals(this.text, that.text) &&
+                this.realPsi.equals(that.realPsi) &&
+                this.funcCtx.equals(that.funcCtx));
     }
 }
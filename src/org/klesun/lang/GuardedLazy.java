@@ -0,0 +1,101 @@
+package org.klesun.lang;
+
+/**
+ * base for lazily computed values that may be shared between threads, like
+ * MemIt or Tls.OnDemand: only one thread computes the value at a time, others
+ * wait for it and then take the result it remembered
+ *
+ * circular references are detected per thread: computation entering itself
+ * again in same thread, or waiting for a thread that waits (maybe through
+ * other threads) for this one - such call is refused instead of deadlock
+ */
+public abstract class GuardedLazy
+{
+    final private static int MAX_WAIT_CHAIN = 1000;
+
+    private static class Waiter
+    {
+        volatile GuardedLazy waitingFor = null;
+    }
+
+    final private static ThreadLocal<Waiter> waiters = ThreadLocal.withInitial(Waiter::new);
+    // calls refused because of a cycle through other threads - unlike the same thread
+    // recursion, the result of such call depends on timing, so it should not be remembered
+    final private static ThreadLocal<int[]> crossThreadCuts = ThreadLocal.withInitial(() -> new int[1]);
+    // all refused calls, same thread recursion included - a value computed meanwhile
+    // lacks what the refused call would have given, so it is not known to be complete
+    final private static ThreadLocal<int[]> circularCuts = ThreadLocal.withInitial(() -> new int[1]);
+
+    // thread computing the value right now, null if none
+    private volatile Waiter owner = null;
+
+    private boolean isCircular(Waiter me)
+    {
+        Waiter waiter = owner;
+        for (int i = 0; waiter != null && i < MAX_WAIT_CHAIN; ++i) {
+            if (waiter == me) {
+                return true;
+            }
+            GuardedLazy blocker = waiter.waitingFor;
+            waiter = blocker != null ? blocker.owner : null;
+        }
+        return false;
+    }
+
+    /** compare the value before and after computation to know if it was cut by other thread */
+    protected static int getCrossThreadCuts()
+    {
+        return crossThreadCuts.get()[0];
+    }
+
+    /** compare the value before and after computation to know if anything inside it was refused */
+    protected static int getCircularCuts()
+    {
+        return circularCuts.get()[0];
+    }
+
+    /** for a call refused on isComputingInThisThread(), without going through guarded() */
+    protected static void countCircularCut()
+    {
+        ++circularCuts.get()[0];
+    }
+
+    /** true if called from inside the computation of this value */
+    protected boolean isComputingInThisThread()
+    {
+        Waiter current = owner;
+        return current != null && current == waiters.get();
+    }
+
+    /**
+     * @return empty if the call is a circular reference, the process is not executed then
+     *
+     * each thread marks what it waits for before checking the chain, so the
+     * last thread closing a cycle always sees it and backs off
+     */
+    protected <T> Opt<T> guarded(Lang.S<T> process)
+    {
+        Waiter me = waiters.get();
+        me.waitingFor = this;
+        try {
+            if (isCircular(me)) {
+                countCircularCut();
+                if (owner != me) {
+                    ++crossThreadCuts.get()[0];
+                }
+                return Lang.non();
+            }
+            synchronized (this) {
+                me.waitingFor = null;
+                owner = me;
+                try {
+                    return new Opt<>(process.get(), true);
+                } finally {
+                    owner = null;
+                }
+            }
+        } finally {
+            me.waitingFor = null;
+        }
+    }
+}
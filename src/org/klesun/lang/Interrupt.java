@@ -0,0 +1,70 @@
+package org.klesun.lang;
+
+import com.intellij.openapi.progress.ProgressManager;
+
+/**
+ * cooperative cancellation for the lazy iterator pipeline - a single
+ * iterator over a huge key list can otherwise keep the read action
+ * busy long after user typed next character, blocking write actions
+ *
+ * iterators are expected to call tick() on every step, the actual
+ * check happens only once in STRIDE steps to keep it cheap
+ */
+public class Interrupt
+{
+    final public static int STRIDE = 64;
+    final private static ThreadLocal<Long> deadline = new ThreadLocal<>();
+
+    /**
+     * throws ProcessCanceledException if IDEA cancelled the progress
+     * @return true if deadline of the current thread passed
+     */
+    public static boolean check()
+    {
+        ProgressManager.checkCanceled();
+        return isPastDeadline();
+    }
+
+    public static boolean isPastDeadline()
+    {
+        Long until = deadline.get();
+        return until != null && System.nanoTime() > until;
+    }
+
+    /**
+     * @param step - number of steps iterator made so far, it should not be
+     *  advanced when this returns true, so that it kept returning true while
+     *  deadline is in force and the iterator could continue after it is lifted
+     */
+    public static boolean tick(int step)
+    {
+        return step % STRIDE == 0 && check();
+    }
+
+    /** iterators stop yielding values when deadline passes while the function is executed */
+    public static <T> T withDeadline(double seconds, Lang.S<T> process)
+    {
+        long until = System.nanoTime() + (long)(seconds * 1000000000L);
+        return withDeadlineAt(until, process);
+    }
+
+    /** null if there is no deadline - to pass it to worker threads */
+    public static Long getDeadline()
+    {
+        return deadline.get();
+    }
+
+    /** @param until - System.nanoTime() value, or null to keep the current one */
+    public static <T> T withDeadlineAt(Long until, Lang.S<T> process)
+    {
+        Long prev = deadline.get();
+        if (until != null) {
+            deadline.set(prev != null ? Math.min(prev, until) : until);
+        }
+        try {
+            return process.get();
+        } finally {
+            deadline.set(prev);
+        }
+    }
+}
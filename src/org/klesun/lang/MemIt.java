@@ -1,80 +1,218 @@
 package org.klesun.lang;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import static org.klesun.lang.Lang.It;
 
 /**
  * a wrapper for an iterator, that remembers all retrieved elements
  * and reuses them on the next attempt to iterate over it
+ *
+ * remembered elements can be read by any number of threads at once,
+ * the source is advanced by one thread at a time, see GuardedLazy
  */
-public class MemIt<A> implements IIt<A>
+public class MemIt<A> extends GuardedLazy implements IIt<A>
 {
-    final private Node head = new Node(null); // first value will be skipped
+    final private static AtomicReferenceFieldUpdater<MemIt, Lang.C> onMemoizedUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(MemIt.class, Lang.C.class, "onMemoized");
+
+    // values are kept in chunks of growing size: 4, 8, 16... so that results
+    // of one or two types, which are the most, did not take much memory
+    final private static int FIRST_CHUNK_SIZE = 4;
+    final private static Object[][] NO_CHUNKS = new Object[0][];
+
+    // written only by the thread advancing the source, replaced when
+    // it has to grow, so readers never see a half copied table
+    private volatile Object[][] chunks = NO_CHUNKS;
+    // written after the value, so a reader that saw it sees the value as well
+    private volatile int size = 0;
     final private Lang.S<Iterator<A>> sourceBle;
-    private boolean isNexting = false;
+    private volatile Lang.C<A> onMemoized = null;
+    private volatile Runnable onCut = null;
+    private volatile boolean isComplete = false;
+    private boolean wasCrossThreadCut = false;
+    private boolean wasCircularCut = false;
 
     public MemIt(Iterable<A> sourceBle)
     {
         this.sourceBle = Tls.onDemand(sourceBle::iterator);
     }
 
+    private static int chunkOf(int index)
+    {
+        return 31 - Integer.numberOfLeadingZeros(index / FIRST_CHUNK_SIZE + 1);
+    }
+
+    private static int offsetIn(int chunk, int index)
+    {
+        return index - FIRST_CHUNK_SIZE * ((1 << chunk) - 1);
+    }
+
+    /** should only be called for index < size */
+    private A valueAt(int index)
+    {
+        int chunk = chunkOf(index);
+        return (A)chunks[chunk][offsetIn(chunk, index)];
+    }
+
+    /** should be called from pull() */
+    private void append(A value)
+    {
+        int index = size;
+        int chunk = chunkOf(index);
+        Object[][] table = chunks;
+        if (chunk >= table.length) {
+            table = Arrays.copyOf(table, chunk + 1);
+            table[chunk] = new Object[FIRST_CHUNK_SIZE << chunk];
+            chunks = table;
+        }
+        table[chunk][offsetIn(chunk, index)] = value;
+        size = index + 1;
+    }
+
+    /**
+     * @param known - how many values the reader has seen
+     * @return false if source is over or it is a circular reference
+     */
+    private boolean pull(int known)
+    {
+        return guarded(() -> {
+            if (size > known) {
+                // other thread took it while we were waiting
+                return true;
+            } else if (isComplete) {
+                // source is over, pulling it again past deadline must not make it "cut"
+                return false;
+            }
+            Iterator<A> source = sourceBle.get();
+            int cutsBefore = getCrossThreadCuts();
+            int circularCutsBefore = getCircularCuts();
+            boolean has = source.hasNext();
+            A value = has ? source.next() : null;
+            // something inside was refused because other thread was computing it,
+            // so even if source is over, its values may differ next time
+            boolean crossCut = getCrossThreadCuts() != cutsBefore;
+            wasCrossThreadCut = wasCrossThreadCut || crossCut;
+            // same thread recursion answers "empty", it is not worth re-resolving
+            // for, but values computed meanwhile are not known to be all there are
+            wasCircularCut = wasCircularCut || getCircularCuts() != circularCutsBefore;
+            // deadline cut source is not exhausted - next pull continues it
+            boolean deadlineCut = !has && Interrupt.isPastDeadline();
+            if (crossCut || deadlineCut) {
+                Runnable cutObserver = onCut;
+                if (cutObserver != null) {
+                    cutObserver.run();
+                }
+            }
+            if (!has) {
+                isComplete = !deadlineCut && !wasCrossThreadCut && !wasCircularCut;
+                return false;
+            }
+            Lang.C<A> observer = onMemoized;
+            if (observer != null) {
+                observer.accept(value);
+            }
+            append(value);
+            return true;
+        }).def(false);
+    }
+
     public Iterator<A> iterator()
     {
-        Iterator<A> source = sourceBle.get();
         return new Iterator<A>() {
-            Node current = head;
+            int pos = 0;
+            int steps = 0;
             public boolean hasNext() {
-                if (isNexting) {
+                if (Interrupt.tick(steps + 1)) {
+                    // user typed next character or search took too long - step is
+                    // not advanced, so it stays stopped till the deadline is lifted
+                    return false;
+                }
+                ++steps;
+                if (isComputingInThisThread()) {
                     // expression resolved through itself results in such recursion in the
                     // iterator. I guess it's safe to answer "empty" on circular reference
+                    countCircularCut();
                     return false;
                 }
-                isNexting = true;
-                boolean has;
-                try {
-                    has = current.next != null
-                        || source.hasNext();
-                } catch (StackOverflowError exc) {
-                    throw exc;
-                }
-                isNexting = false;
-                return has;
+                return pos < size
+                    || pull(pos);
             }
             public A next() {
-                if (isNexting) {
+                if (isComputingInThisThread()) {
                     throw new NoSuchElementException("shalava");
                 }
-                isNexting = true;
-                if (current.next != null) {
-                    // look further
-                } else if (source.hasNext()) {
-                    A value = source.next();
-                    current.next = new Node(value);
-                } else {
+                if (pos >= size && !pull(pos)) {
                     throw new NoSuchElementException("loh");
                 }
-                current = current.next;
-                isNexting = false;
-                return current.value;
+                return valueAt(pos++);
             }
         };
     }
 
-    public boolean has() {
-        return It(this).has();
+    /**
+     * "gat" stands for "get at", like in L - takes values from the
+     * source up to the index if they were not taken yet
+     */
+    public Opt<A> gat(int index)
+    {
+        if (index < 0) {
+            return Lang.non();
+        }
+        for (int known = size; known <= index; known = size) {
+            if (isComputingInThisThread()) {
+                countCircularCut();
+                return Lang.non();
+            } else if (!pull(known)) {
+                return Lang.non();
+            }
+        }
+        return Lang.opt(valueAt(index));
     }
 
-    private class Node
+    /**
+     * takes all values from the source, free once it is over - empty if the source
+     * was cut by interrupt or circular reference, since then the count of values
+     * taken is not the count of values there are
+     */
+    public Opt<Integer> size()
     {
-        final A value;
-        Node next = null;
-
-        public Node(A value)
-        {
-            this.value = value;
+        if (!isComplete) {
+            It(this).fch(value -> {});
         }
+        return isComplete ? Lang.som(size) : Lang.non();
+    }
+
+    /**
+     * call the function on every value that will be remembered from now on, for
+     * memory accounting - returns false if there already was such function set
+     */
+    public boolean observeMemoized(Lang.C<A> f) {
+        return onMemoizedUpdater.compareAndSet(this, null, f);
+    }
+
+    /**
+     * the function is called every time source is cut by interrupt or by a
+     * circular reference through other thread, so that the result was not trusted
+     */
+    public MemIt<A> whenCut(Runnable f) {
+        this.onCut = f;
+        return this;
+    }
+
+    /**
+     * true if source is over and nothing it was made of was cut by a
+     * circular reference (in any thread) or interrupt on the way
+     */
+    public boolean isComplete() {
+        return isComplete;
+    }
+
+    public boolean has() {
+        return size > 0 || It(this).has();
     }
 
     public L<A> arr()
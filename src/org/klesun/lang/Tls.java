@@ -239,10 +239,14 @@ public class Tls extends Lang
         Opt<T> ifHas();
     }
 
-    public static class OnDemand<T> implements IOnDemand<T>
+    /**
+     * function is called once even if value is requested from many threads,
+     * on circular reference it is called again without remembering the result
+     */
+    public static class OnDemand<T> extends GuardedLazy implements IOnDemand<T>
     {
         final private S<T> f;
-        private Opt<T> value = non();
+        private volatile Opt<T> value = non();
 
         OnDemand(S<T> f)
         {
@@ -254,10 +258,16 @@ public class Tls extends Lang
 
         @Override
         public T get() {
-            if (!value.has()) {
-                value = new Opt<>(f.get(), true);
+            Opt<T> got = value;
+            if (!got.has()) {
+                got = guarded(() -> {
+                    if (!value.has()) {
+                        value = new Opt<>(f.get(), true);
+                    }
+                    return value.unw();
+                }).elf(() -> new Opt<>(f.get(), true));
             }
-            return value.unw();
+            return got.unw();
         }
         public boolean has() {
             return value.has();
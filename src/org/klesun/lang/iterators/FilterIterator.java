@@ -1,5 +1,6 @@
 package org.klesun.lang.iterators;
 
+import org.klesun.lang.Interrupt;
 import org.klesun.lang.Lang;
 import org.klesun.lang.Opt;
 
@@ -22,7 +23,9 @@ public class FilterIterator<A> implements Iterator<A> {
 
     private Opt<A> getCurrent() {
         if (!current.has()) {
-            while (sourceIt.hasNext()) {
+            // checked before taking the value, so that it was not lost, and the step
+            // is not advanced when interrupted, so it stays stopped till the deadline is lifted
+            while (!Interrupt.tick(i + 2) && sourceIt.hasNext()) {
                 A value = sourceIt.next();
                 ++i;
                 if (pred.apply(value, i)) {
@@ -11,6 +11,7 @@ public class FlatMapIterator<A, B> implements Iterator<B> {
     Opt<Iterator<Iterator<B>>> iterators = non();
     private Iterator<B> current = new L<B>().iterator();
     private int i = 0;
+    private int steps = 0;
 
     public FlatMapIterator(Iterator<A> sourceIt, Lang.F2<A, Integer, Iterable<B>> flatten) {
         this.iterables = It(() -> sourceIt)
@@ -28,18 +29,30 @@ public class FlatMapIterator<A, B> implements Iterator<B> {
         Iterator<Iterator<B>> iterators = getIterators();
         if (current.hasNext()) {
             return som(() -> current.next());
+        } else if (Interrupt.isPastDeadline()) {
+            // current one was cut, not over - it will continue from same place
+            return non();
         } else {
-            while (iterators.hasNext()) {
+            while (!Interrupt.tick(steps + 1) && iterators.hasNext()) {
+                ++steps;
                 current = iterators.next();
                 if (current.hasNext()) {
                     return som(() -> current.next());
                 }
+                if (Interrupt.isPastDeadline()) {
+                    return non();
+                }
                 ++i;
             }
             return non();
         }
     }
     public boolean hasNext() {
+        // step is not advanced when interrupted, so it stays stopped till the deadline is lifted
+        if (Interrupt.tick(steps + 1)) {
+            return false;
+        }
+        ++steps;
         return getNextSup().has();
     }
     public B next() {
@@ -1,5 +1,6 @@
 package org.klesun.lang.iterators;
 
+import org.klesun.lang.Interrupt;
 import org.klesun.lang.Lang;
 
 import java.util.Iterator;
@@ -17,7 +18,8 @@ public class ThenIterator<A> implements Iterator<A> {
 
     public boolean hasNext() {
         boolean has = sourceIt.hasNext();
-        if (!has && !thened) {
+        // source cut by interrupt is not over, it may continue later
+        if (!has && !thened && !Interrupt.isPastDeadline()) {
             thened = true;
             then.accept(i);
         }
@@ -34,10 +34,10 @@ public class CaseContext
         L<Error> errors = list();
 
         DeepType expectedt = expected.getValueTypes().fst().unw();
-        expectedt.keys.itr().fch((subExpected) -> subExpected.keyType.getNames().fch(subKey -> {
+        expectedt.getKeys().itr().fch((subExpected) -> subExpected.keyType.getNames().fch(subKey -> {
             It<Key> havingKey = Lang.It(actual)
                 .fap(krecs -> krecs.getValueTypes())
-                .fap(t -> t.keys)
+                .fap(t -> t.getKeys())
                 .flt(k -> k.keyType.getNames().any(n -> n.equals(subKey)));
 
             if (!havingKey.has()) {
@@ -96,8 +96,8 @@ public class CaseContext
         logger.setCaseContext(this);
         L<Error> errors = list();
 
-        It<String> actualKeys = actual.types.fap(t -> t.keys).fap(k -> k.keyType.getNames());
-        L<String> expectedKeys = expected.types.fap(t -> t.keys).fap(k -> k.keyType.getNames()).arr();
+        It<String> actualKeys = actual.types.fap(t -> t.getKeys()).fap(k -> k.keyType.getNames());
+        L<String> expectedKeys = expected.types.fap(t -> t.getKeys()).fap(k -> k.keyType.getNames()).arr();
 
         errors.addAll(testCaseExact(actualKeys, expectedKeys));
 
@@ -15,6 +15,7 @@ import org.klesun.lang.Lang;
 import org.klesun.lang.Opt;
 
 import java.awt.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.klesun.lang.Lang.L;
 import static org.klesun.lang.Lang.*;
@@ -31,6 +32,8 @@ public class Logger
     private Balloon currentBalloon;
     private Opt<CaseContext> caseContext = non();
     private Opt<String> currentKey = non();
+    // to measure throughput, like expressions per second
+    final private AtomicInteger work = new AtomicInteger(0);
 
     public Logger()
     {
@@ -116,12 +119,23 @@ public class Logger
         ++sucCnt;
     }
 
+    /** searches add resolved expressions to it, it will be read when all tests are done */
+    public AtomicInteger getWorkCounter()
+    {
+        return work;
+    }
+
     private void showResultPopup(Iterable<Error> errors)
     {
         L<Error> msgs = L(errors);
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+        int work = this.work.get();
         this.flushed = true;
         this.logMsg("");
         msgs.fch(this::logErr);
+        if (work > 0) {
+            this.logMsg("Resolved " + work + " expressions in " + seconds + " s. - " + (int)(work / seconds) + " expr/s");
+        }
         this.logMsg("Done\n");
         updateBalloon();
     }
@@ -561,6 +561,55 @@ class ExactKeysUnitTest extends AbstractExactKeysUnitTest implements IExactKeysU
         return $list;
     }
 
+    public function provideCompactInBranch()
+    {
+        $list = [];
+        if (rand() % 2) {
+            $age = 24;
+        } else {
+            $height = 180;
+            $person = compact('age', 'height');
+            $person[''];
+            // should not take $age from the other branch
+            $list[] = [$person, ['height']];
+        }
+        return $list;
+    }
+
+    public function provideShadowedVarInClosure()
+    {
+        $list = [];
+        $seg = ['from' => 'KIV', 'to' => 'RIX'];
+        $makeOther = function() {
+            $seg = ['airline' => 'BT', 'flightNumber' => '123'];
+            return $seg;
+        };
+        $other = $makeOther();
+        $seg[''];
+        $other[''];
+        // same name in the closure is a different variable
+        $list[] = [$seg, ['from', 'to']];
+        $list[] = [$other, ['airline', 'flightNumber']];
+        return $list;
+    }
+
+    public function provideBranchLocalVar()
+    {
+        $list = [];
+        if (rand() % 2) {
+            $rec = ['a' => 1];
+            $rec[''];
+            $list[] = [$rec, ['a']];
+        } else {
+            $rec = ['b' => 2];
+            $rec[''];
+            $list[] = [$rec, ['b']];
+        }
+        $rec[''];
+        $list[] = [$rec, ['a', 'b']];
+        return $list;
+    }
+
     public function provideAssignmentOfAssignment()
     {
         $list = [];
@@ -2294,6 +2343,171 @@ class ExactKeysUnitTest extends AbstractExactKeysUnitTest implements IExactKeysU
         ];
     }
 
+    private static function wrapBooking($booking)
+    {
+        return ['booking' => $booking, 'wrappedAt' => time()];
+    }
+
+    private static function wrapWrapped($wrapped)
+    {
+        return ['outer' => self::wrapBooking($wrapped)];
+    }
+
+    public function provideKeysOfDeepestRound()
+    {
+        $list = [];
+        $pnr = ['recordLocator' => 'QWE123', 'passengers' => [['name' => 'Vasya']]];
+        $wrapped = self::wrapWrapped(self::wrapWrapped($pnr));
+        $wrapped['outer'][''];
+        $wrapped['outer']['booking']['outer']['booking'][''];
+        // shallow keys should stay when keys at the bottom are found as well
+        $list[] = [$wrapped['outer'], ['booking', 'wrappedAt']];
+        $list[] = [$wrapped['outer']['booking']['outer']['booking'], ['recordLocator', 'passengers']];
+        $list[] = [$wrapped['outer']['booking']['outer']['booking']['passengers'][0], ['name']];
+        return $list;
+    }
+
+    public function provideElseIfConditionAssignment()
+    {
+        $list = [];
+        $rec = ['fromStart' => 1];
+        if (rand() % 3 === 0) {
+            $rec = ['fromIf' => 1];
+            $rec[''];
+            $list[] = [$rec, ['fromIf']];
+        } elseif ($rec = ['fromElseIfCond' => 1]) {
+            // assignment in the condition surely happened in its body
+            $rec[''];
+            $list[] = [$rec, ['fromElseIfCond']];
+        } else if ($rec = ['fromElseSpaceIfCond' => 1]) {
+            if (rand() % 2) {
+                $rec[''];
+                $list[] = [$rec, ['fromElseSpaceIfCond']];
+            }
+        }
+        return $list;
+    }
+
+    private static function addCreatedAt(array $row)
+    {
+        $row['createdAt'] = date('Y-m-d');
+        return $row;
+    }
+
+    public function provideSameShapedArgCalls()
+    {
+        $list = [];
+        $first = self::addCreatedAt(['id' => 1, 'name' => 'Vasya']);
+        $second = self::addCreatedAt(['id' => 1, 'name' => 'Vasya']);
+        $third = self::addCreatedAt(['id' => 1, 'name' => 'Vasya']);
+        $other = self::addCreatedAt(['sku' => 'A1', 'price' => '5.00']);
+        $third[''];
+        $other[''];
+        // third call may reuse the return type of the second one, but not other shapes
+        $list[] = [$first, ['id', 'name', 'createdAt']];
+        $list[] = [$second, ['id', 'name', 'createdAt']];
+        $list[] = [$third, ['id', 'name', 'createdAt']];
+        $list[] = [$other, ['sku', 'price', 'createdAt']];
+        return $list;
+    }
+
+    private static function tagSource(array $data)
+    {
+        return ['data' => $data, 'taggedAt' => time()];
+    }
+
+    private static function tagVia(array $data)
+    {
+        return self::tagSource($data);
+    }
+
+    public function provideSameCallThroughOuterPaths()
+    {
+        $list = [];
+        $flight = self::tagVia(['airline' => 'BT', 'flightNumber' => '123']);
+        $hotel = self::tagVia(['hotelName' => 'Hilton', 'nights' => 3]);
+        $flight['data'][''];
+        $hotel['data'][''];
+        // tagSource() is called from the same place for both, only outer calls differ, so with
+        // "Call string limit" set to 1 these contexts are one and share the first result
+        $list[] = [$flight, ['data', 'taggedAt']];
+        $list[] = [$flight['data'], ['airline', 'flightNumber']];
+        $list[] = [$hotel['data'], ['hotelName', 'nights']];
+        return $list;
+    }
+
+    private static function buildMenu(array $items)
+    {
+        $menu = [];
+        foreach ($items as $item) {
+            $menu[] = [
+                'title' => $item['title'],
+                'children' => self::buildMenu($item['children']),
+            ];
+        }
+        return $menu;
+    }
+
+    public function provideRecursiveFunctionReturn()
+    {
+        $list = [];
+        $menu = self::buildMenu([
+            ['title' => 'Home', 'children' => [
+                ['title' => 'News', 'children' => []],
+            ]],
+        ]);
+        $menu[0][''];
+        $menu[0]['children'][0][''];
+        // keys of the nested level come only through the recursive call
+        $list[] = [$menu[0], ['title', 'children']];
+        $list[] = [$menu[0]['children'][0], ['title', 'children']];
+        return $list;
+    }
+
+    public function provideSameShapeFromManyPlaces()
+    {
+        $list = [];
+        if (rand() % 4 === 0) {
+            $status = ['state' => 'ok', 'details' => ['ttl' => 60]];
+        } elseif (rand() % 4 === 1) {
+            $status = ['state' => 'ok', 'details' => ['ttl' => 60]];
+        } elseif (rand() % 4 === 2) {
+            $status = ['state' => 'ok', 'details' => ['ttl' => 60]];
+        } else {
+            // same top level keys, only nested ones differ - should not be merged
+            $status = ['state' => 'ok', 'details' => ['retryAfter' => 5]];
+        }
+        $status[''];
+        $status['details'][''];
+        $list[] = [$status, ['state', 'details']];
+        $list[] = [$status['details'], ['ttl', 'retryAfter']];
+        return $list;
+    }
+
+    public function provideWidenedUnionOverLimit()
+    {
+        $list = [];
+        // more array types than "Widen unions bigger than" (100 by default)
+        $rows = [
+            ['id' => 1], ['id' => 2], ['id' => 3], ['id' => 4], ['id' => 5], ['id' => 6], ['id' => 7], ['id' => 8], ['id' => 9], ['id' => 10],
+            ['id' => 11], ['id' => 12], ['id' => 13], ['id' => 14], ['id' => 15], ['id' => 16], ['id' => 17], ['id' => 18], ['id' => 19], ['id' => 20],
+            ['id' => 21], ['id' => 22], ['id' => 23], ['id' => 24], ['id' => 25], ['id' => 26], ['id' => 27], ['id' => 28], ['id' => 29], ['id' => 30],
+            ['id' => 31], ['id' => 32], ['id' => 33], ['id' => 34], ['id' => 35], ['id' => 36], ['id' => 37], ['id' => 38], ['id' => 39], ['id' => 40],
+            ['id' => 41], ['id' => 42], ['id' => 43], ['id' => 44], ['id' => 45], ['id' => 46], ['id' => 47], ['id' => 48], ['id' => 49], ['id' => 50],
+            ['id' => 51], ['id' => 52], ['id' => 53], ['id' => 54], ['id' => 55], ['id' => 56], ['id' => 57], ['id' => 58], ['id' => 59], ['id' => 60],
+            ['id' => 61], ['id' => 62], ['id' => 63], ['id' => 64], ['id' => 65], ['id' => 66], ['id' => 67], ['id' => 68], ['id' => 69], ['id' => 70],
+            ['id' => 71], ['id' => 72], ['id' => 73], ['id' => 74], ['id' => 75], ['id' => 76], ['id' => 77], ['id' => 78], ['id' => 79], ['id' => 80],
+            ['id' => 81], ['id' => 82], ['id' => 83], ['id' => 84], ['id' => 85], ['id' => 86], ['id' => 87], ['id' => 88], ['id' => 89], ['id' => 90],
+            ['id' => 91], ['id' => 92], ['id' => 93], ['id' => 94], ['id' => 95], ['id' => 96], ['id' => 97], ['id' => 98], ['id' => 99], ['id' => 100],
+            ['id' => 101, 'isLast' => true],
+        ];
+        $row = $rows[rand(0, 100)];
+        $row[''];
+        // keys of the types past the limit come from the merged one
+        $list[] = [$row, ['id', 'isLast']];
+        return $list;
+    }
+
     //=============================
     // following are not implemented yet
     //=============================